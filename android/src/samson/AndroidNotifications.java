@@ -5,11 +5,12 @@
 
 package samson;
 
-import java.io.StringWriter;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
 
 import android.app.Activity;
 import android.app.AlarmManager;
+import android.app.Application;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -20,14 +21,14 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Build;
+import android.os.Bundle;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
 
-import com.google.common.collect.Sets;
-
-import playn.core.Json;
-import playn.core.PlayN;
-import playn.core.json.JsonParserException;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import static samson.Log.log;
 
@@ -51,8 +52,11 @@ public class AndroidNotifications extends Notifications
                 Notification notification =
                     (Notification)intent.getExtras().get(NotificationIntent.EXTRA_KEY_NOTIFICATION);
 
-                // remove the pending notification
-                if (instance.removeNotification(id)) {
+                // remove the pending notification, saving right away as the process may not
+                // live on after this
+                boolean removed = instance.registry.remove(id);
+                instance.registry.flush();
+                if (removed) {
                     // notification was successfully removed so send the notification
                     instance.notificationManager.notify(id, notification);
                 } else {
@@ -100,15 +104,34 @@ public class AndroidNotifications extends Notifications
             (NotificationManager)applicationContext.getSystemService(Context.NOTIFICATION_SERVICE);
         this.alarmManager =
             (AlarmManager)applicationContext.getSystemService(Context.ALARM_SERVICE);
+
+        // the registry writes behind on the PlayN thread, which stops with the activity, so save
+        // anything still pending when the app goes into the background and may be killed
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            mainActivity.getApplication().registerActivityLifecycleCallbacks(
+                new Application.ActivityLifecycleCallbacks() {
+                    @Override public void onActivityPaused (Activity activity) {
+                        registry.flush();
+                    }
+                    @Override public void onActivityCreated (Activity activity, Bundle state) {}
+                    @Override public void onActivityStarted (Activity activity) {}
+                    @Override public void onActivityResumed (Activity activity) {}
+                    @Override public void onActivityStopped (Activity activity) {}
+                    @Override public void onActivitySaveInstanceState (
+                        Activity activity, Bundle state) {}
+                    @Override public void onActivityDestroyed (Activity activity) {}
+                });
+        }
     }
 
     @Override
     public void cancelAll () {
+        clearCoalesced();
         notificationManager.cancelAll();
 
         // iterate through the pending notifications and cancel each applicable one
         Intent intent = new Intent(applicationContext, Receiver.class);
-        for (int id : getNotifications()) {
+        for (int id : registry.ids()) {
             PendingIntent pending = PendingIntent.getBroadcast(applicationContext, id, intent,
                 PendingIntent.FLAG_UPDATE_CURRENT);
             if (pending != null) {
@@ -117,37 +140,94 @@ public class AndroidNotifications extends Notifications
                 log.warning("Failed to cancel notification", "id", id);
             }
         }
-        setNotifications(Sets.<Integer>newHashSet());
+        registry.clear();
     }
 
     @Override
     protected Handle schedule (long when, Builder builder) {
-        // pull the id of this notification based off the Builder's string id or an automatically
-        // generated identifier
-        final int id;
+        Integer id = getIdentifier(builder);
+        if (id == null) {
+            return null;
+        }
+
+        // register the pending notification id; it is written behind, and saved at the latest
+        // when the app is paused, before a process that has to read it back could be started
+        registry.add(id);
+
+        return post(when, builder, id, createContentIntent(), getLargeIcon(builder));
+    }
+
+    @Override
+    protected List<Handle> schedule (List<Builder> builders) {
+        List<Integer> ids = Lists.newArrayListWithCapacity(builders.size());
+        for (Builder builder : builders) {
+            ids.add(getIdentifier(builder));
+        }
+
+        // register all the pending notification ids at once, saving them before any alarm can go
+        // off in a process that has to read them back
+        registry.addAll(Iterables.filter(ids, Predicates.notNull()));
+        registry.flush();
+
+        // share the content intent and decoded icons between the notifications
+        PendingIntent content = createContentIntent();
+        Map<Integer, Bitmap> icons = Maps.newHashMap();
+        List<Handle> handles = Lists.newArrayListWithCapacity(builders.size());
+        for (int ii = 0, nn = builders.size(); ii < nn; ii++) {
+            Builder builder = builders.get(ii);
+            Integer id = ids.get(ii);
+            if (id == null) {
+                handles.add(null);
+                continue;
+            }
+            if (!icons.containsKey(builder._icon)) {
+                icons.put(builder._icon, getLargeIcon(builder));
+            }
+            handles.add(post(builder._time, builder, id, content, icons.get(builder._icon)));
+        }
+        return handles;
+    }
+
+    /**
+     * Returns the id of the given notification, based off the Builder's string id or an
+     * automatically generated identifier, or null if none could be found.
+     */
+    protected Integer getIdentifier (Builder builder) {
         try {
-            id = builder._data.containsKey(Notifications.ID) ?
-            builder._data.get(Notifications.ID).hashCode() : getAutomaticIdentifier();
+            return builder._data.containsKey(Notifications.ID) ?
+                builder._data.get(Notifications.ID).hashCode() : getAutomaticIdentifier();
         }  catch (IllegalArgumentException exception) {
             log.error("Failed to find valid identifier to send notification with.");
             return null;
         }
+    }
 
+    /**
+     * Returns the intent to launch the main activity when a notification is tapped.
+     */
+    protected PendingIntent createContentIntent () {
         // build a simulated task stack so the back button works properly
         TaskStackBuilder stack = TaskStackBuilder.create(applicationContext).
             addParentStack(activityClass).
             addNextIntent(new Intent(applicationContext, activityClass));
+        return stack.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
 
+    /**
+     * Sets an alarm to present the given notification, which has been registered as pending.
+     */
+    protected Handle post (long when, Builder builder, final int id, PendingIntent content,
+            Bitmap largeIcon) {
         // create the notification builder
         Notification notification =
             new NotificationCompat.Builder(applicationContext).
                 setAutoCancel(true).
                 setSmallIcon(builder._icon).
-                setLargeIcon(getLargeIcon(builder)).
+                setLargeIcon(largeIcon).
                 setContentTitle(builder._title).
                 setContentText(builder._message).
                 setVibrate(builder._vibrate ? new long[]{100, 200, 200, 200} : new long[]{}).
-                setContentIntent(stack.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT)).
+                setContentIntent(content).
                 setWhen(when).
                 setStyle(new NotificationCompat.BigTextStyle().
                     bigText(builder._message)).
@@ -158,9 +238,6 @@ public class AndroidNotifications extends Notifications
             PendingIntent.getBroadcast(applicationContext, id,
                 new NotificationIntent(applicationContext, id, notification), 0);
 
-        // register the pending notification id
-        addNotification(id);
-
         // pass the intent to the alarm receiver
         alarmManager.set(AlarmManager.RTC_WAKEUP, when, pending);
 
@@ -169,7 +246,7 @@ public class AndroidNotifications extends Notifications
             public void cancel () {
                 notificationManager.cancel(id);
                 alarmManager.cancel(pending);
-                removeNotification(id);
+                registry.remove(id);
             }
         };
     }
@@ -198,99 +275,18 @@ public class AndroidNotifications extends Notifications
     }
 
     /**
-     * Adds a notification identifier to the list of pending notifications.
-     */
-    protected synchronized void addNotification (int id) {
-        Set<Integer> ids = getNotifications();
-        if (ids.add(id)) {
-            setNotifications(ids);
-        }
-    }
-
-    /**
-     * Removes a notification identifier from the list of pending notifications.
-     */
-    protected synchronized boolean removeNotification (int id) {
-        Set<Integer> ids = getNotifications();
-        if (ids.remove(id)) {
-            setNotifications(ids);
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    /**
-     * Returns a set of existing notification identifiers waiting to be fired.
-     */
-    protected synchronized Set<Integer> getNotifications () {
-        String jsondata = PlayN.storage().getItem(STORAGE_KEY);
-        if (jsondata == null) {
-            return Sets.newHashSet();
-        }
-
-        try {
-            Json.Object json = PlayN.platform().json().parse(jsondata);
-            return Sets.newHashSet(json.getArray(JSON_KEY_IDS, Integer.class));
-        } catch (JsonParserException exception) {
-            log.warning("Failed to parse AndroidNotifications JSON", "jsondata", jsondata, exception);
-            PlayN.storage().removeItem(STORAGE_KEY);
-            return Sets.newHashSet();
-        }
-    }
-
-    /**
-     * Sets the storage value with the given list of identifiers.
-     */
-    protected synchronized void setNotifications (Set<Integer> ids) {
-        // build the json list of identifiers
-        Json.Array jsonids = PlayN.json().createArray();
-        for (int id : ids) {
-            jsonids.add(id);
-        }
-
-        // build the json object
-        Json.Object json = PlayN.platform().json().createObject();
-        json.put(JSON_KEY_IDS, jsonids);
-
-        // write the json object to the json writer
-        Json.Writer jsonwriter = PlayN.json().newWriter().useVerboseFormat(false).object();
-        json.write(jsonwriter);
-        jsonwriter.end();
-
-        // convert json writer to string
-        StringWriter stringwriter = new StringWriter();
-        stringwriter.write(jsonwriter.write());
-
-        // store the string
-        PlayN.storage().setItem(STORAGE_KEY, stringwriter.toString());
-    }
-
-    /**
-     * Returns an automatically generated identifier for a notification.
+     * Returns an automatically generated identifier for a notification, already registered as
+     * pending.
      *
      * @throws IllegalArgumentException if no valid identifier could be found
      */
-    protected synchronized int getAutomaticIdentifier () {
-        Set<Integer> ids = getNotifications();
-
-        // iterate through negative values to prevent overlap with manually defined ids
-        for (int ii = -1; ii > Integer.MIN_VALUE; --ii) {
-            if (ids.contains(ii)) {
-                continue;
-            }
-            return ii;
-        }
-
-        throw new IllegalArgumentException();
+    protected int getAutomaticIdentifier () {
+        return registry.allocate();
     }
 
     /** Key used in PlayN storage to store notification information. */
     private static final String STORAGE_KEY = "samson.AndroidNotifications";
 
-    /** Json key in the storage for notification identifiers. */
-    private static final String JSON_KEY_IDS = "ids";
-
     /** Class of the main activity to be launched when the notification is tapped. */
     private final Class<? extends Activity> activityClass;
 
@@ -302,4 +298,7 @@ public class AndroidNotifications extends Notifications
 
     /** Reference to the alarm manager in the application context. */
     private final AlarmManager alarmManager;
+
+    /** The identifiers of the pending notifications. */
+    private final NotificationRegistry registry = new NotificationRegistry(STORAGE_KEY);
 }
\ No newline at end of file
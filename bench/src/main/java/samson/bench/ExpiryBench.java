@@ -0,0 +1,52 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import samson.Interval;
+
+/**
+ * Time from scheduling an interval one millisecond out to its expiration running, sampled so that
+ * JMH reports percentiles. Anything over 1ms is the lateness of the scheduler. Expirations run
+ * directly on the scheduler's thread, so the executor does not add to it.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExpiryBench
+{
+    /** An interval that wakes up the benchmark thread when it expires. */
+    @State(Scope.Thread)
+    public static class Waiter
+    {
+        public volatile boolean expired;
+        public final Thread thread = Thread.currentThread();
+        public final Interval interval = new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                expired = true;
+                LockSupport.unpark(thread);
+            }
+        };
+    }
+
+    @Benchmark
+    public void expireAfter1ms (SchedulerState scheduler, Waiter waiter)
+    {
+        waiter.expired = false;
+        waiter.interval.schedule(1);
+        while (!waiter.expired) {
+            LockSupport.park(this);
+        }
+    }
+}
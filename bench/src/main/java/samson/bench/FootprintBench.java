@@ -0,0 +1,85 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import samson.Interval;
+
+/**
+ * Memory costs of intervals, meant to be run with the GC profiler: {@code -prof gc}. Its {@code
+ * gc.alloc.rate.norm} is then the bytes allocated per operation.
+ *
+ * <ul>
+ * <li>{@code pendingInterval}: the bytes for one new interval and its place in the scheduler,
+ * which approximates the memory held by each pending interval.</li>
+ * <li>{@code cancelledGarbage}: the garbage left by scheduling and cancelling a new interval,
+ * as a screen that creates and drops its intervals does.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FootprintBench
+{
+    /** Holds the intervals pended by an invocation, cancelled after it. */
+    @State(Scope.Thread)
+    public static class Batch
+    {
+        public final Interval[] intervals = new Interval[COUNT];
+
+        @TearDown(Level.Invocation)
+        public void cancel ()
+        {
+            for (Interval interval : intervals) {
+                if (interval != null) {
+                    interval.cancel();
+                }
+            }
+        }
+    }
+
+    @Benchmark @OperationsPerInvocation(COUNT)
+    public void pendingInterval (SchedulerState scheduler, Batch batch)
+    {
+        for (int ii = 0; ii < COUNT; ii++) {
+            Interval interval = newInterval();
+            interval.schedule(DELAY);
+            batch.intervals[ii] = interval;
+        }
+    }
+
+    @Benchmark
+    public Interval cancelledGarbage (SchedulerState scheduler)
+    {
+        Interval interval = newInterval();
+        interval.schedule(DELAY);
+        interval.cancel();
+        return interval;
+    }
+
+    protected static Interval newInterval ()
+    {
+        return new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {}
+        };
+    }
+
+    /** The number of intervals pended per invocation. */
+    protected static final int COUNT = 1000;
+
+    /** Far enough away that nothing expires during a run. */
+    protected static final long DELAY = 60 * 60 * 1000L;
+}
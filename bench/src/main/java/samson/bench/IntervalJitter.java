@@ -0,0 +1,63 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson.bench;
+
+import java.util.concurrent.CountDownLatch;
+
+import samson.Interval;
+import samson.IntervalScheduler;
+import samson.IntervalStats;
+import samson.PreciseScheduler;
+import samson.TimerScheduler;
+
+/**
+ * Measures how accurately repeating intervals fire on each scheduler. Not a JMH benchmark, run it
+ * by hand, ideally on an otherwise idle machine: {@code java -cp target/benchmarks.jar
+ * samson.bench.IntervalJitter [periodMicros] [count]}. For each scheduler, prints the
+ * distribution of the difference between the ideal and actual time of each expiration, in
+ * microseconds.
+ */
+public class IntervalJitter
+{
+    public static void main (String[] args) throws InterruptedException
+    {
+        long periodNanos = (args.length > 0 ? Long.parseLong(args[0]) : 2000L) * 1000L;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        measure("TimerScheduler", new TimerScheduler(), periodNanos, count);
+        measure("PreciseScheduler", new PreciseScheduler(), periodNanos, count);
+        measure("PreciseScheduler (spin 100us)", new PreciseScheduler(100000L), periodNanos,
+            count);
+    }
+
+    protected static void measure (String name, IntervalScheduler scheduler, long periodNanos,
+        final int count) throws InterruptedException
+    {
+        Interval.setScheduler(scheduler);
+        final IntervalStats.Histogram jitter = new IntervalStats.Histogram();
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] start = new long[1];
+        final long period = periodNanos;
+        Interval ival = new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                long now = System.nanoTime();
+                _fired++;
+                jitter.record(Math.abs(now - (start[0] + _fired * period)) / 1000L);
+                if (_fired == count) {
+                    done.countDown();
+                }
+            }
+            protected int _fired;
+        };
+
+        start[0] = System.nanoTime();
+        ival.scheduleNanos(period, period, true);
+        done.await();
+        ival.cancel();
+        scheduler.shutdown();
+        System.out.println(name + ": jitter (us) " + jitter);
+    }
+}
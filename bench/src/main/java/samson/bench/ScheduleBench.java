@@ -0,0 +1,88 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import samson.Interval;
+
+/**
+ * Throughput of scheduling and cancelling intervals, from 1, 4 and 16 threads at once. Each thread
+ * works on its own interval, far enough in the future that it never expires, so these measure the
+ * cost of the scheduler's bookkeeping and its contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScheduleBench
+{
+    /** An interval per thread. */
+    @State(Scope.Thread)
+    public static class Pending
+    {
+        public final Interval interval = new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {}
+        };
+
+        @TearDown(Level.Iteration)
+        public void cancel ()
+        {
+            interval.cancel();
+        }
+    }
+
+    @Benchmark @Threads(1)
+    public void scheduleCancel1 (SchedulerState scheduler, Pending pending)
+    {
+        scheduleCancel(pending.interval);
+    }
+
+    @Benchmark @Threads(4)
+    public void scheduleCancel4 (SchedulerState scheduler, Pending pending)
+    {
+        scheduleCancel(pending.interval);
+    }
+
+    @Benchmark @Threads(16)
+    public void scheduleCancel16 (SchedulerState scheduler, Pending pending)
+    {
+        scheduleCancel(pending.interval);
+    }
+
+    /**
+     * Reschedules a pending interval, superseding its previous schedule each time, as intervals
+     * used for timeouts and debouncing do.
+     */
+    @Benchmark @Threads(1)
+    public void rescheduleChurn1 (SchedulerState scheduler, Pending pending)
+    {
+        pending.interval.schedule(DELAY);
+    }
+
+    @Benchmark @Threads(4)
+    public void rescheduleChurn4 (SchedulerState scheduler, Pending pending)
+    {
+        pending.interval.schedule(DELAY);
+    }
+
+    protected static void scheduleCancel (Interval interval)
+    {
+        interval.schedule(DELAY);
+        interval.cancel();
+    }
+
+    /** Far enough away that nothing expires during a run. */
+    protected static final long DELAY = 60 * 60 * 1000L;
+}
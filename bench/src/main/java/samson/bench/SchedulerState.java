@@ -0,0 +1,77 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import samson.Interval;
+import samson.IntervalScheduler;
+import samson.PreciseScheduler;
+import samson.ShardedScheduler;
+import samson.TimerScheduler;
+import samson.TimingWheelScheduler;
+
+/**
+ * Installs the scheduler being measured for the duration of a trial. Benchmarks that take this
+ * state run once per scheduler, select some with {@code -p scheduler=wheel,timer}.
+ */
+@State(Scope.Benchmark)
+public class SchedulerState
+{
+    @Param({ "timer", "wheel", "sharded", "precise" })
+    public String scheduler;
+
+    @Setup(Level.Trial)
+    public void install ()
+    {
+        _previous = Interval.scheduler();
+        _installed = create(scheduler);
+        Interval.setScheduler(_installed);
+    }
+
+    @TearDown(Level.Iteration)
+    public void purge ()
+    {
+        // the timer keeps every cancelled schedule queued until its deadline, an hour away, so
+        // drop them rather than let them pile up from one iteration to the next
+        _installed.purge();
+    }
+
+    @TearDown(Level.Trial)
+    public void restore ()
+    {
+        // put back whatever was there before, and stop the measured scheduler's threads so that
+        // they do not compete with the next trial
+        Interval.setScheduler(_previous);
+        _installed.shutdown();
+        _installed = _previous = null;
+    }
+
+    public static IntervalScheduler create (String name)
+    {
+        if (name.equals("timer")) {
+            return new TimerScheduler();
+        } else if (name.equals("wheel")) {
+            return new TimingWheelScheduler();
+        } else if (name.equals("sharded")) {
+            return new ShardedScheduler();
+        } else if (name.equals("precise")) {
+            return new PreciseScheduler();
+        }
+        throw new IllegalArgumentException("Unknown scheduler " + name);
+    }
+
+    /** The scheduler that was installed before the trial. */
+    protected IntervalScheduler _previous;
+
+    /** The scheduler being measured. */
+    protected IntervalScheduler _installed;
+}
@@ -0,0 +1,252 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import samson.text.DateTimeFormat;
+import samson.text.DateTimeFormat.LocalTime;
+
+import static samson.Log.log;
+
+/**
+ * Runs many subscribers on shared wall-clock boundaries, such as a daily reset at local midnight.
+ * Subscribers to the same boundary share a single {@link Interval}, which runs each of them in
+ * turn when it expires, so the cost to the scheduler depends on the number of distinct
+ * boundaries, not on the number of subscribers. Boundaries are in the local time of the given
+ * {@link DateTimeFormat}, and keep to the local time of day across daylight saving changes.
+ *
+ * <pre>
+ * CalendarSchedule calendar = new CalendarSchedule(Samson.dateTimeFormat(), executor);
+ * player.reset = calendar.daily(0, 0, new Runnable() {
+ *     public void run () { player.resetDailyQuests(); }
+ * });
+ * // on logout
+ * player.reset.cancel();
+ * </pre>
+ */
+public class CalendarSchedule
+{
+    /**
+     * A subscription to a boundary.
+     */
+    public static interface Subscription
+    {
+        /**
+         * Stops running the subscriber. Once the last subscriber of a boundary is cancelled, the
+         * boundary is no longer scheduled.
+         */
+        void cancel ();
+    }
+
+    /**
+     * Creates a schedule that runs its subscribers on {@link Interval#PLAYN}.
+     */
+    public CalendarSchedule (DateTimeFormat format)
+    {
+        this(format, Interval.PLAYN);
+    }
+
+    /**
+     * Creates a schedule that runs its subscribers on the given executor, using the local time of
+     * the given format.
+     */
+    public CalendarSchedule (DateTimeFormat format, Executor executor)
+    {
+        _format = Preconditions.checkNotNull(format);
+        _executor = Preconditions.checkNotNull(executor);
+    }
+
+    /**
+     * Runs the given subscriber every day at the given local time, until the returned
+     * subscription is cancelled.
+     */
+    public Subscription daily (int hour, int minute, Runnable subscriber)
+    {
+        Preconditions.checkArgument(hour >= 0 && hour < 24, "Bad hour");
+        Preconditions.checkArgument(minute >= 0 && minute < 60, "Bad minute");
+        Preconditions.checkNotNull(subscriber);
+        int minuteOfDay = hour * 60 + minute;
+        synchronized (this) {
+            Boundary boundary = _boundaries.get(minuteOfDay);
+            if (boundary == null) {
+                boundary = new Boundary(minuteOfDay);
+                _boundaries.put(minuteOfDay, boundary);
+                boundary.scheduleNext(Interval.currentTimeMillis());
+            }
+            Entry entry = new Entry(boundary, subscriber);
+            boundary.entries.add(entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Returns the number of distinct boundaries that are scheduled.
+     */
+    public synchronized int boundaryCount ()
+    {
+        return _boundaries.size();
+    }
+
+    /**
+     * Returns the number of subscriptions that have not been cancelled.
+     */
+    public synchronized int subscriberCount ()
+    {
+        int count = 0;
+        for (Boundary boundary : _boundaries.values()) {
+            count += boundary.entries.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the first time after the given one at which the local time is the given time of
+     * day. On a day that skips that time, returns the time it would have been had the clocks not
+     * moved.
+     */
+    public long nextDaily (long after, int hour, int minute)
+    {
+        long target = (hour * 60L + minute) * 60L * 1000L;
+        long next = after - millisIntoDay(after) + target;
+        if (next <= after) {
+            next += DAY;
+        }
+        // if the offset from UTC differs between now and then, correct by the difference
+        for (int ii = 0; ii < 2; ii++) {
+            long drift = millisIntoDay(next) - target;
+            if (drift > DAY / 2) {
+                drift -= DAY;
+            } else if (drift <= -DAY / 2) {
+                drift += DAY;
+            }
+            if (drift == 0L) {
+                break;
+            }
+            next -= drift;
+        }
+        return (next <= after) ? next + DAY : next;
+    }
+
+    /**
+     * Returns the number of milliseconds into the local day of the given time.
+     */
+    protected long millisIntoDay (long time)
+    {
+        LocalTime local = _format.toLocal(new Date(time));
+        return ((local.hour * 60L + local.minute) * 60L + local.second) * 1000L +
+            ((time % 1000L) + 1000L) % 1000L;
+    }
+
+    /**
+     * Cancels the given subscription, dropping its boundary if it was the last one.
+     */
+    protected synchronized void remove (Entry entry)
+    {
+        Boundary boundary = entry.boundary;
+        if (boundary.entries.remove(entry) && boundary.entries.isEmpty()) {
+            boundary.cancel();
+            _boundaries.remove(boundary.minuteOfDay);
+        }
+    }
+
+    /**
+     * The subscribers to one time of day, and the interval that runs them.
+     */
+    protected class Boundary extends Interval
+    {
+        /** The time of day, in minutes after midnight. */
+        public final int minuteOfDay;
+
+        /** The subscriptions. */
+        public final Set<Entry> entries = Sets.newLinkedHashSet();
+
+        /** The time for which we are scheduled. */
+        public long next;
+
+        public Boundary (int minuteOfDay)
+        {
+            super(_executor);
+            this.minuteOfDay = minuteOfDay;
+        }
+
+        /**
+         * Schedules the first occurrence after the given time. Must be called with the lock of
+         * the calendar held.
+         */
+        public void scheduleNext (long after)
+        {
+            next = nextDaily(after, minuteOfDay / 60, minuteOfDay % 60);
+            schedule(Math.max(0L, next - Interval.currentTimeMillis()));
+        }
+
+        @Override public void expired ()
+        {
+            Entry[] entries;
+            synchronized (CalendarSchedule.this) {
+                if (this.entries.isEmpty()) {
+                    return;
+                }
+                entries = this.entries.toArray(new Entry[this.entries.size()]);
+                scheduleNext(Math.max(next, Interval.currentTimeMillis()));
+            }
+            for (Entry entry : entries) {
+                if (!entry.cancelled) {
+                    try {
+                        entry.subscriber.run();
+                    } catch (Throwable t) {
+                        log.warning("Calendar subscriber failed", "subscriber", entry.subscriber,
+                            "minuteOfDay", minuteOfDay, t);
+                    }
+                }
+            }
+        }
+
+        @Override public String toString ()
+        {
+            return "Boundary [" + minuteOfDay / 60 + ":" + minuteOfDay % 60 + ", subscribers=" +
+                entries.size() + "]";
+        }
+    }
+
+    /** A subscription. */
+    protected class Entry implements Subscription
+    {
+        public final Boundary boundary;
+        public final Runnable subscriber;
+        public volatile boolean cancelled;
+
+        public Entry (Boundary boundary, Runnable subscriber)
+        {
+            this.boundary = boundary;
+            this.subscriber = subscriber;
+        }
+
+        @Override public void cancel ()
+        {
+            cancelled = true;
+            remove(this);
+        }
+    }
+
+    /** Gives us the local time. */
+    protected final DateTimeFormat _format;
+
+    /** Runs the subscribers. */
+    protected final Executor _executor;
+
+    /** The scheduled boundaries, by minute of the day. */
+    protected final Map<Integer, Boundary> _boundaries = Maps.newHashMap();
+
+    protected static final long DAY = 24 * 60 * 60 * 1000L;
+}
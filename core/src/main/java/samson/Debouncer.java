@@ -0,0 +1,117 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs an action once a burst of events has gone quiet, for example to search once the user stops
+ * typing. Each {@link #trigger()} pushes the run back to the given delay after it. Triggering only
+ * moves a deadline: the underlying {@link Interval} is scheduled once per burst and, when it
+ * expires early, reschedules itself for the remainder.
+ *
+ * <pre>
+ * Debouncer search = new Debouncer(300, new Runnable() {
+ *     public void run () { runSearch(field.text.get()); }
+ * });
+ * field.text.connect(new UnitSlot() {
+ *     public void onEmit () { search.trigger(); }
+ * });
+ * </pre>
+ */
+public class Debouncer
+{
+    /**
+     * Creates a debouncer that runs the given action on {@link Interval#PLAYN} once it has not
+     * been triggered for the given number of milliseconds.
+     */
+    public Debouncer (long delay, Runnable action)
+    {
+        this(Interval.PLAYN, delay, action);
+    }
+
+    /**
+     * Creates a debouncer that runs the given action on the given executor once it has not been
+     * triggered for the given number of milliseconds.
+     */
+    public Debouncer (Executor executor, long delay, Runnable action)
+    {
+        Preconditions.checkArgument(delay >= 0L, "Negative delay.");
+        _delay = delay;
+        _action = Preconditions.checkNotNull(action);
+        _interval = new Interval(executor) {
+            @Override public void expired () {
+                Debouncer.this.expired();
+            }
+        };
+    }
+
+    /**
+     * Notes an event, (re)starting the quiet period after which the action runs. Safe to call
+     * from any thread.
+     */
+    public void trigger ()
+    {
+        _deadline = Interval.currentTimeMillis() + _delay;
+        if (_armed.compareAndSet(false, true)) {
+            _interval.schedule(_delay);
+        }
+    }
+
+    /**
+     * Returns whether the action is waiting to run.
+     */
+    public boolean isPending ()
+    {
+        return _armed.get();
+    }
+
+    /**
+     * Drops the pending run of the action, if any.
+     */
+    public void cancel ()
+    {
+        _interval.cancel();
+        _armed.set(false);
+    }
+
+    protected void expired ()
+    {
+        long now = Interval.currentTimeMillis();
+        long remaining = _deadline - now;
+        if (remaining > 0L) {
+            // triggered again since we were scheduled, wait out the rest
+            _interval.schedule(remaining);
+            return;
+        }
+
+        _armed.set(false);
+        // a trigger that saw us armed just now will not have scheduled us, so do it for it
+        remaining = _deadline - now;
+        if (remaining > 0L && _armed.compareAndSet(false, true)) {
+            _interval.schedule(remaining);
+        }
+        _action.run();
+    }
+
+    /** The quiet period, in milliseconds. */
+    protected final long _delay;
+
+    /** What we run. */
+    protected final Runnable _action;
+
+    /** Expires when the quiet period may have ended. */
+    protected final Interval _interval;
+
+    /** Whether {@link #_interval} is scheduled. */
+    protected final AtomicBoolean _armed = new AtomicBoolean();
+
+    /** When the quiet period ends, in epoch millis. */
+    protected volatile long _deadline;
+}
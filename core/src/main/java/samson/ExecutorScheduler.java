@@ -0,0 +1,128 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Schedules intervals on a {@link ScheduledExecutorService}, for applications that already run a
+ * tuned pool and want intervals to share it. Interval deadlines may then be processed on several
+ * threads. If the service is a {@code ScheduledThreadPoolExecutor} with its remove-on-cancel
+ * policy set, cancelled intervals are removed from its queue immediately. Each schedule hands the
+ * service a new runnable, and gets a new future back.
+ *
+ * <p>Note: the service is not shut down by this class. Scheduling an interval after it has been
+ * shut down throws the service's {@code RejectedExecutionException}.</p>
+ */
+public class ExecutorScheduler extends IntervalScheduler
+{
+    /**
+     * Creates a scheduler that uses the given service for all deadlines.
+     */
+    public ExecutorScheduler (ScheduledExecutorService service)
+    {
+        _service = Preconditions.checkNotNull(service);
+    }
+
+    /**
+     * Returns the service used by this scheduler.
+     */
+    public ScheduledExecutorService service ()
+    {
+        return _service;
+    }
+
+    @Override
+    protected void schedule (Interval.IntervalTask task, long initialDelay, long repeatDelay,
+        boolean fixedRate)
+    {
+        TimeUnit ms = TimeUnit.MILLISECONDS;
+        Firing firing = new Firing(task, task.generation());
+        firing.next = System.currentTimeMillis() + initialDelay;
+        firing.period = repeatDelay;
+        firing.fixedRate = fixedRate;
+        if (repeatDelay == 0L) {
+            firing.future = _service.schedule(firing, initialDelay, ms);
+        } else if (fixedRate) {
+            firing.future = _service.scheduleAtFixedRate(firing, initialDelay, repeatDelay, ms);
+        } else {
+            firing.future = _service.scheduleWithFixedDelay(
+                firing, initialDelay, repeatDelay, ms);
+        }
+        task._handle = firing;
+    }
+
+    @Override
+    protected void cancel (Interval.IntervalTask task)
+    {
+        Object handle = task._handle;
+        if (handle instanceof Firing) {
+            Firing firing = (Firing)handle;
+            // without remove-on-cancel the service keeps the runnable queued until its deadline,
+            // so let go of the task (and through it the interval) right away
+            firing.task = null;
+            firing.future.cancel(false);
+        }
+    }
+
+    @Override
+    public void purge ()
+    {
+        if (_service instanceof ThreadPoolExecutor) {
+            ((ThreadPoolExecutor)_service).purge();
+        }
+    }
+
+    /**
+     * The runnable handed to the service for one schedule of an interval task.
+     */
+    protected static class Firing implements Runnable
+    {
+        /** The task to fire, or null once cancelled. */
+        public volatile Interval.IntervalTask task;
+
+        /** The generation of the task's schedule that we represent. */
+        public final int generation;
+
+        /** The service's handle on this runnable. */
+        public Future<?> future;
+
+        /** The time at which the service is next expected to run us. */
+        public long next;
+
+        /** The repeat delay, or zero. */
+        public long period;
+
+        /** Whether the repeat delay is measured from the scheduled time or the actual run. */
+        public boolean fixedRate;
+
+        public Firing (Interval.IntervalTask task, int generation)
+        {
+            this.task = task;
+            this.generation = generation;
+        }
+
+        public void run ()
+        {
+            long scheduled = next;
+            if (period != 0L) {
+                next = (fixedRate ? scheduled : System.currentTimeMillis()) + period;
+            }
+            Interval.IntervalTask task = this.task;
+            if (task != null) {
+                task.fire(generation, scheduled);
+            }
+        }
+    }
+
+    /** The service that tracks our deadlines. */
+    protected final ScheduledExecutorService _service;
+}
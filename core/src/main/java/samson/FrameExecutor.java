@@ -0,0 +1,327 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import com.google.common.base.Preconditions;
+
+import static samson.Log.log;
+
+/**
+ * Spreads queued work over frames. Tasks are queued in priority lanes, and each pass over the
+ * queue, posted to an underlying executor, normally {@link Interval#PLAYN}, runs tasks until a
+ * time budget is used up. Whatever is left is carried over to the next pass, which for {@code
+ * PLAYN} is the next frame. A burst of work therefore costs several frames a little time each,
+ * instead of one frame a lot of time.
+ *
+ * <p>Lanes are drained in rounds. In each round, every lane in turn, highest priority first, runs
+ * up to its {@link #setQuota quota} of tasks, so a flood of low priority work cannot hold up
+ * critical work, and critical work cannot starve the rest entirely.</p>
+ *
+ * <p>Each lane is an executor of its own, so intervals can be bound to one:</p>
+ * <pre>
+ * FrameExecutor frames = new FrameExecutor(4);
+ * Interval input = new Interval(frames.lane(FrameExecutor.Lane.CRITICAL)) { ... };
+ * Interval sparkle = new Interval(frames.lane(FrameExecutor.Lane.BACKGROUND)) { ... };
+ * </pre>
+ *
+ * <p>At least one task runs on every pass, so a task that takes longer than the budget delays the
+ * rest by one pass, but does not stall the queue.</p>
+ */
+public class FrameExecutor
+    implements Executor
+{
+    /** The priority lanes, highest priority first. */
+    public enum Lane {
+        /** Work the user is waiting on, such as input handling, UI updates and keepalives. A
+         * quota of 32 by default, so that even a lane that keeps refilling lets the others run. */
+        CRITICAL(32),
+
+        /** Everything else that is not in a hurry. The lane of {@link #execute(Runnable)}. A
+         * quota of 8 by default. */
+        NORMAL(8),
+
+        /** Work that can wait for a quiet frame, such as cosmetic effects and prefetching. A
+         * quota of 2 by default. */
+        BACKGROUND(2);
+
+        /** The default number of tasks the lane runs per round. */
+        public final int defaultQuota;
+
+        Lane (int defaultQuota) {
+            this.defaultQuota = defaultQuota;
+        }
+    }
+
+    /**
+     * Creates an executor that runs work on {@link Interval#PLAYN}, spending up to the given
+     * number of milliseconds per frame.
+     */
+    public FrameExecutor (long budgetMillis)
+    {
+        this(Interval.PLAYN, budgetMillis);
+    }
+
+    /**
+     * Creates an executor that runs work on the given executor, spending up to the given number
+     * of milliseconds per pass.
+     */
+    public FrameExecutor (Executor target, long budgetMillis)
+    {
+        Preconditions.checkArgument(budgetMillis > 0L, "Budget must be positive.");
+        _target = Preconditions.checkNotNull(target);
+        _budgetNanos = budgetMillis * 1000000L;
+        Lane[] lanes = Lane.values();
+        _queues = newQueues(lanes.length);
+        _lanes = new Executor[lanes.length];
+        _quotas = new int[lanes.length];
+        _ran = new int[lanes.length];
+        _queuedNanos = new long[lanes.length][];
+        _waits = new IntervalStats.Histogram[lanes.length];
+        for (final Lane lane : lanes) {
+            _quotas[lane.ordinal()] = lane.defaultQuota;
+            _queuedNanos[lane.ordinal()] = new long[16];
+            _waits[lane.ordinal()] = new IntervalStats.Histogram();
+            _lanes[lane.ordinal()] = new Executor() {
+                @Override public void execute (Runnable task) {
+                    FrameExecutor.this.execute(lane, task);
+                }
+                @Override public String toString () {
+                    return FrameExecutor.this + "/" + lane;
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns an executor that queues work in the given lane.
+     */
+    public Executor lane (Lane lane)
+    {
+        return _lanes[lane.ordinal()];
+    }
+
+    /**
+     * Sets the number of tasks the given lane may run in each round before the lanes after it
+     * get a turn. {@code Integer.MAX_VALUE} lets the lane run until it is empty.
+     */
+    public synchronized void setQuota (Lane lane, int quota)
+    {
+        Preconditions.checkArgument(quota > 0, "Quota must be positive.");
+        _quotas[lane.ordinal()] = quota;
+    }
+
+    /**
+     * Returns the quota of the given lane, see {@link #setQuota}.
+     */
+    public synchronized int quota (Lane lane)
+    {
+        return _quotas[lane.ordinal()];
+    }
+
+    /**
+     * Queues the given task in the {@link Lane#NORMAL} lane.
+     */
+    @Override public void execute (Runnable task)
+    {
+        execute(Lane.NORMAL, task);
+    }
+
+    /**
+     * Queues the given task in the given lane.
+     */
+    public void execute (Lane lane, Runnable task)
+    {
+        Preconditions.checkNotNull(task);
+        int index = lane.ordinal();
+        synchronized (this) {
+            ArrayDeque<Runnable> queue = _queues[index];
+            long[] queued = _queuedNanos[index];
+            if (queue.size() == queued.length) {
+                // grow the ring, straightening it out at the same time
+                long[] grown = new long[queued.length * 2];
+                int head = _queuedHeads[index];
+                System.arraycopy(queued, head, grown, 0, queued.length - head);
+                System.arraycopy(queued, 0, grown, queued.length - head, head);
+                _queuedHeads[index] = 0;
+                _queuedNanos[index] = queued = grown;
+            }
+            queued[(_queuedHeads[index] + queue.size()) % queued.length] = System.nanoTime();
+            queue.add(task);
+            if (_posted) {
+                return;
+            }
+            _posted = true;
+        }
+        post();
+    }
+
+    /**
+     * Returns the number of tasks waiting to run in the given lane.
+     */
+    public synchronized int backlog (Lane lane)
+    {
+        return _queues[lane.ordinal()].size();
+    }
+
+    /**
+     * Returns how long the tasks of the given lane have waited to run, in microseconds.
+     */
+    public IntervalStats.Histogram waits (Lane lane)
+    {
+        return _waits[lane.ordinal()];
+    }
+
+    /**
+     * Returns the number of tasks waiting to run, in all lanes.
+     */
+    public synchronized int backlog ()
+    {
+        int backlog = 0;
+        for (ArrayDeque<Runnable> queue : _queues) {
+            backlog += queue.size();
+        }
+        return backlog;
+    }
+
+    @Override public String toString ()
+    {
+        return "FrameExecutor [target=" + _target + ", budget=" + _budgetNanos / 1000000L + "ms]";
+    }
+
+    /**
+     * Runs queued tasks until the budget is used up or the queue is empty, then posts another
+     * pass if anything is left.
+     */
+    protected void drain ()
+    {
+        long start = System.nanoTime();
+        do {
+            Runnable task;
+            synchronized (this) {
+                task = next();
+                if (task == null) {
+                    _posted = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.warning("Frame task failed", "task", task, t);
+            }
+        } while (System.nanoTime() - start < _budgetNanos);
+
+        synchronized (this) {
+            if (!hasWork()) {
+                _posted = false;
+                return;
+            }
+        }
+        post();
+    }
+
+    /**
+     * Removes and returns the next task to run, or null if there is none. Must be called with the
+     * lock held.
+     */
+    protected Runnable next ()
+    {
+        for (int round = 0; round < 2; round++) {
+            for (int ii = 0; ii < _queues.length; ii++) {
+                ArrayDeque<Runnable> queue = _queues[ii];
+                if (_ran[ii] < _quotas[ii] && !queue.isEmpty()) {
+                    _ran[ii]++;
+                    long[] queued = _queuedNanos[ii];
+                    int head = _queuedHeads[ii];
+                    _waits[ii].record((System.nanoTime() - queued[head]) / 1000L);
+                    _queuedHeads[ii] = (head + 1) % queued.length;
+                    return queue.poll();
+                }
+            }
+            // every lane with work has used its quota, start a new round
+            Arrays.fill(_ran, 0);
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether any lane has a task waiting. Must be called with the lock held.
+     */
+    protected boolean hasWork ()
+    {
+        for (ArrayDeque<Runnable> queue : _queues) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected void post ()
+    {
+        try {
+            _target.execute(_drainer);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                _posted = false;
+            }
+            throw e;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected static ArrayDeque<Runnable>[] newQueues (int count)
+    {
+        ArrayDeque<Runnable>[] queues = new ArrayDeque[count];
+        for (int ii = 0; ii < count; ii++) {
+            queues[ii] = new ArrayDeque<Runnable>();
+        }
+        return queues;
+    }
+
+    /** Posted to the target executor to run a pass. */
+    protected final Runnable _drainer = new Runnable() {
+        @Override public void run () {
+            drain();
+        }
+        @Override public String toString () {
+            return FrameExecutor.this.toString();
+        }
+    };
+
+    /** The executor that runs our passes. */
+    protected final Executor _target;
+
+    /** How long each pass may run for. */
+    protected final long _budgetNanos;
+
+    /** The tasks waiting in each lane, by lane ordinal. */
+    protected final ArrayDeque<Runnable>[] _queues;
+
+    /** The executor for each lane, by lane ordinal. */
+    protected final Executor[] _lanes;
+
+    /** The quota of each lane, by lane ordinal. */
+    protected final int[] _quotas;
+
+    /** The number of tasks each lane has run in the current round, by lane ordinal. */
+    protected final int[] _ran;
+
+    /** The System.nanoTime() at which each waiting task was queued, a ring per lane in step with
+     * the lane's queue, and the index of the head of each ring. */
+    protected final long[][] _queuedNanos;
+    protected final int[] _queuedHeads = new int[Lane.values().length];
+
+    /** How long the tasks of each lane waited, by lane ordinal. */
+    protected final IntervalStats.Histogram[] _waits;
+
+    /** Whether a pass is posted to, or running on, the target executor. */
+    protected boolean _posted;
+}
@@ -5,12 +5,17 @@
 
 package samson;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 
 import playn.core.PlayN;
 import static samson.Log.log;
@@ -18,7 +23,8 @@ import static samson.Log.log;
 /**
  * An interface for doing operations after some delay. Allows expiration to occur on a specific
  * thread, and guarantees that any queued expiration will not run if the Interval has since been
- * cancelled or rescheduled.
+ * cancelled or rescheduled. The deadlines of all intervals are tracked by a shared {@link
+ * IntervalScheduler}, see {@link #setScheduler(IntervalScheduler)}.
  */
 public abstract class Interval
 {
@@ -32,6 +38,18 @@ public abstract class Interval
         }
     };
 
+    /**
+     * Executor that runs the {@link #expired} method directly on the scheduler's thread. Only
+     * suitable for intervals whose expired method is short and thread safe. With a {@link
+     * VirtualScheduler}, this makes expirations run synchronously as the clock is advanced.
+     */
+    public static final Executor RUN_DIRECT = new Executor () {
+        @Override
+        public void execute (Runnable runnable) {
+            runnable.run();
+        }
+    };
+
     /**
      * An interface that will be implemented by the runnable posted to a RunQueue that can be used
      * to retrieve the original Interval.
@@ -51,6 +69,103 @@ public abstract class Interval
         public String getIntervalClassName ();
     }
 
+    /**
+     * What a repeating, fixed-rate interval does about the expirations it missed when it falls
+     * behind by more than its period, for example after a long GC pause or while the app was in
+     * the background and its timers did not run.
+     */
+    public static enum CatchUp
+    {
+        /** Every missed expiration is fired, back to back. This is the default. Like any other
+         * expirations, those that come due while the previous one is still waiting on the
+         * interval's executor are folded into it, see {@link Interval#expired(int)}. */
+        FIRE_ALL,
+
+        /** The missed expirations run as a single call to {@link Interval#expired(int)}, which is
+         * told how many were missed. */
+        COALESCE,
+
+        /** The missed expirations are dropped and the interval runs once, carrying on at its next
+         * deadline on the original schedule. */
+        SKIP
+    }
+
+    /**
+     * Sets the scheduler used for all subsequent calls to {@code schedule}. Intervals that are
+     * already scheduled stay with the scheduler they were scheduled on until they are cancelled
+     * or rescheduled. This is normally called once, on startup.
+     */
+    public static void setScheduler (IntervalScheduler scheduler)
+    {
+        _scheduler = Preconditions.checkNotNull(scheduler);
+    }
+
+    /**
+     * Returns the scheduler used for new schedules.
+     */
+    public static IntervalScheduler scheduler ()
+    {
+        return _scheduler;
+    }
+
+    /**
+     * Returns the current time in epoch milliseconds according to the clock of the current
+     * scheduler. Code that schedules intervals for absolute times should use this rather than
+     * {@link System#currentTimeMillis()} so that it also works with a {@link VirtualScheduler}.
+     */
+    public static long currentTimeMillis ()
+    {
+        return _scheduler.currentTimeMillis();
+    }
+
+    /**
+     * Sets whether expirations are batched. When batched, all intervals that expire while a
+     * batch for their executor is waiting to run are added to that batch instead of each being
+     * posted on its own, so a timer tick in which many intervals expire costs the executor a
+     * single post. Each batch runs its expirations in deadline order. Off by default.
+     */
+    public static void setBatchedDispatch (boolean batched)
+    {
+        _batched = batched;
+    }
+
+    /**
+     * Holds back all interval expirations until {@link #resumeAll()}. Schedules keep running while
+     * paused, but nothing is posted to any executor. Intended for apps going into the background.
+     */
+    public static void pauseAll ()
+    {
+        synchronized (_deferredTasks) {
+            _paused = true;
+        }
+    }
+
+    /**
+     * Releases the expirations held back since {@link #pauseAll()}. Each interval that came due
+     * while paused and is still scheduled expires once, regardless of how many of its deadlines
+     * passed. Intervals with the {@link CatchUp#COALESCE} policy are told how many they missed.
+     */
+    public static void resumeAll ()
+    {
+        IntervalTask[] deferred;
+        synchronized (_deferredTasks) {
+            _paused = false;
+            deferred = _deferredTasks.toArray(new IntervalTask[_deferredTasks.size()]);
+            _deferredTasks.clear();
+        }
+        for (IntervalTask task : deferred) {
+            task.resume();
+        }
+    }
+
+    /**
+     * Returns whether expirations are held back by {@link #pauseAll()}.
+     */
+    public static boolean isPaused ()
+    {
+        return _paused;
+    }
+
     /**
      * Create an Interval that uses {@link PlayN#invokeLater(Runnable)} to run the {@link #expired}
      * method.
@@ -69,18 +184,73 @@ public abstract class Interval
         _runQueue = Preconditions.checkNotNull(runQueue);
     }
 
+    /**
+     * Sets how late, in milliseconds, this interval may expire. Subsequent schedules move the
+     * first deadline up to this much later, to a time that is shared with other intervals that
+     * have a similar tolerance, so that the scheduler can fire them all in one wakeup. This
+     * saves CPU and battery on mobile devices when many intervals are pending. Repeats keep
+     * their period, so a repeating interval whose period is a multiple of the tolerance stays
+     * aligned. The default is zero: deadlines are not moved.
+     */
+    public final void setTolerance (long tolerance)
+    {
+        Preconditions.checkArgument(tolerance >= 0L, "Negative tolerance.");
+        _tolerance = tolerance;
+    }
+
+    /**
+     * Returns the tolerance set with {@link #setTolerance(long)}.
+     */
+    public final long tolerance ()
+    {
+        return _tolerance;
+    }
+
+    /**
+     * Sets what this interval does about missed expirations when it is repeating at a fixed rate
+     * and falls behind, see {@link CatchUp}. Takes effect for expirations that come due after
+     * this call. The default is {@link CatchUp#FIRE_ALL}, which is also what schedules with a
+     * period under a millisecond always do, as expirations are only timed to the millisecond.
+     */
+    public final void setCatchUp (CatchUp catchUp)
+    {
+        _catchUp = Preconditions.checkNotNull(catchUp);
+    }
+
+    /**
+     * Returns the policy set with {@link #setCatchUp(CatchUp)}.
+     */
+    public final CatchUp catchUp ()
+    {
+        return _catchUp;
+    }
+
     /**
      * The main method where your interval should do its work.
      */
     public abstract void expired ();
 
+    /**
+     * Called when the interval expires, with the number of expirations that were folded into this
+     * one. An interval is never waiting on its executor more than once: expirations that come due
+     * while it is are counted here instead of being posted again, which keeps a backed up run
+     * queue from filling with copies of the same interval. Intervals with the {@link
+     * CatchUp#COALESCE} policy also count the deadlines they missed while the scheduler was
+     * behind. The default implementation calls {@link #expired()}, override this instead to catch
+     * up on missed work in one go.
+     */
+    public void expired (int missed)
+    {
+        expired();
+    }
+
     /**
      * Schedules this interval to execute once at <code>when</code>. Supersedes any previous
      * schedule that this Interval may have had.
      */
     public final void schedule (Date when)
     {
-        schedule(when.getTime() - System.currentTimeMillis());
+        schedule(when.getTime() - currentTimeMillis());
     }
 
     /**
@@ -129,36 +299,72 @@ public abstract class Interval
      *
      * @param fixedRate - if true, this interval schedules repeated expirations using
      * {@link Timer#scheduleAtFixedRate(TimerTask, long, long)} ensuring that the number of
-     * expired calls will match the amount of time elapsed. If false, it uses
-     * {@link Timer#schedule(TimerTask, long, long)} which ensures that there will be close to
-     * <code>repeateDelay</code> milliseconds between expirations.
+     * expired calls will match the amount of time elapsed, see also {@link #setCatchUp}. If
+     * false, it uses {@link Timer#schedule(TimerTask, long, long)} which ensures that there will
+     * be close to <code>repeateDelay</code> milliseconds between expirations.
      *
      * @exception IllegalArgumentException if fixedRate is false and a RunQueue has been specified.
      * That doesn't make sense because the fixed delay cannot account for the time that the
-     * RunBuddy sits on the RunQueue waiting to call expire().
+     * RunBuddy sits on the RunQueue waiting to call expire(). Also thrown if either delay is
+     * negative.
      */
     public final void schedule (long initialDelay, long repeatDelay, boolean fixedRate)
     {
-        cancel();
-        IntervalTask task = new IntervalTask(this);
-        _task = task;
+        Preconditions.checkArgument(initialDelay >= 0L, "Negative delay.");
+        Preconditions.checkArgument(repeatDelay >= 0L, "Negative repeat delay.");
+        IntervalTask task = _task;
+        synchronized (task) {
+            task.prepare(_scheduler, repeatDelay, fixedRate);
+            scheduleTask(applyTolerance(initialDelay), repeatDelay, fixedRate);
+        }
+    }
 
-        // try twice to schedule the task- see comment inside the catch
-        try {
-            scheduleTask(initialDelay, repeatDelay, fixedRate);
+    /**
+     * Schedules the interval to execute once, after the given number of nanoseconds. See {@link
+     * #scheduleNanos(long, long, boolean)}.
+     */
+    public final void scheduleNanos (long delayNanos)
+    {
+        scheduleNanos(delayNanos, 0L, true);
+    }
 
-        } catch (IllegalStateException ise) {
-            // Timer.schedule will only throw this if the TimerThead was shut down.
-            // This may happen automatically in Applets, so we need to create a new
-            // Timer now. Note that in a multithreaded environment it may be possible
-            // to have more than one Timer after this happens. That would be slightly
-            // undesirable but should not break anything.
-            log.warning("Recreating timer");
-            _timer = createTimer();
-            scheduleTask(initialDelay, repeatDelay, fixedRate);
+    /**
+     * Schedules the interval with delays in nanoseconds, for work such as network ticks and
+     * animation pacing that needs finer timing than milliseconds. Otherwise the same as {@link
+     * #schedule(long, long, boolean)}, except that the {@link #setTolerance tolerance} is not
+     * applied. Only schedulers with a fine clock, such as {@link PreciseScheduler}, honor the
+     * extra precision, others round the delays up to whole milliseconds.
+     *
+     * @exception IllegalArgumentException if the scheduler keeps a fixed-rate period under a
+     * millisecond and the interval has a {@link CatchUp} policy other than {@link
+     * CatchUp#FIRE_ALL}, which cannot count missed expirations that finely. Also thrown if either
+     * delay is negative.
+     */
+    public final void scheduleNanos (long initialDelayNanos, long repeatDelayNanos,
+        boolean fixedRate)
+    {
+        Preconditions.checkArgument(initialDelayNanos >= 0L, "Negative delay.");
+        Preconditions.checkArgument(repeatDelayNanos >= 0L, "Negative repeat delay.");
+        IntervalScheduler scheduler = _scheduler;
+        IntervalTask task = _task;
+        synchronized (task) {
+            long periodNanos = scheduler.periodNanos(task, repeatDelayNanos);
+            Preconditions.checkArgument(!fixedRate || periodNanos == 0L ||
+                periodNanos >= 1000000L || _catchUp == CatchUp.FIRE_ALL,
+                "Sub-millisecond periods can only catch up with FIRE_ALL.");
+            task.prepareNanos(scheduler, periodNanos, fixedRate);
+            task._scheduler.scheduleNanos(task, initialDelayNanos, repeatDelayNanos, fixedRate);
         }
     }
 
+    /**
+     * Returns the group this interval belongs to, or null.
+     */
+    public final IntervalGroup group ()
+    {
+        return _group;
+    }
+
     /**
      * Cancel the current schedule, and ensure that any expirations that are queued up but have not
      * yet run do not run.
@@ -166,65 +372,105 @@ public abstract class Interval
     public final void cancel ()
     {
         IntervalTask task = _task;
-        if (task != null) {
-            _task = null;
-            task.cancel();
+        synchronized (task) {
+            task.unschedule();
         }
     }
 
     protected final void scheduleTask (long initialDelay, long repeatDelay, boolean fixedRate)
     {
-        if (repeatDelay == 0L) {
-            _timer.schedule(_task, initialDelay);
-        } else if (fixedRate) {
-            _timer.scheduleAtFixedRate(_task, initialDelay, repeatDelay);
-        } else {
-            _timer.schedule(_task, initialDelay, repeatDelay);
+        IntervalTask task = _task;
+        task._scheduler.schedule(task, initialDelay, repeatDelay, fixedRate);
+    }
+
+    /**
+     * Returns the given delay, lengthened by up to our tolerance so that the deadline falls on a
+     * multiple of the largest power of two milliseconds not exceeding the tolerance. Intervals
+     * with similar tolerances thereby end up with identical deadlines.
+     */
+    protected final long applyTolerance (long delay)
+    {
+        long tolerance = _tolerance;
+        if (tolerance <= 1L) {
+            return delay;
         }
+        long grain = Long.highestOneBit(tolerance);
+        long now = _scheduler.currentTimeMillis();
+        long deadline = now + delay;
+        return (deadline + grain - 1) / grain * grain - now;
     }
 
-    protected final void safelyExpire (IntervalTask task)
+    protected final void safelyExpire (int generation, int missed)
     {
-        // only expire the interval if the task is still valid
-        if (_task == task) {
+        // only expire the interval if the schedule that posted this expiration is still current;
+        // schedule() and cancel() both move the task on to a new generation
+        if (_task.isCurrent(generation)) {
+            long start = IntervalStats.isEnabled() ? System.nanoTime() : 0L;
+            IntervalWatchdog.Watch watch = IntervalWatchdog.begin(_task._intervalClassName);
             try {
-                expired();
+                expired(missed);
             } catch (Throwable t) {
                 log.warning("Interval broken in expired() " + this, t);
             }
-
-        } else {
-            // If the task has been defanged, we go ahead and try cancelling it again. The reason
-            // for this is that it's possible to have a runaway task if two threads call schedule()
-            // and cancel() at the same time.
-            // 1) ThreadA calls cancel() and gets a handle on taskA, yields.
-            // 2) ThreadB calls schedule(), gets a handle on taskA, cancel()s, which sets _task to
-            //    null, then sets up taskB, returns.
-            // 3) ThreadA resumes, sets _task to null and re-cancels taskA.  taskB is now an active
-            //    TimerTask but is not referenced anywhere.  In case this is taskB, we cancel it so
-            //    that it doesn't ineffectually expire repeatedly until the JVM exists.
-            task.cancel();
+            if (watch != null) {
+                IntervalWatchdog.end(watch);
+            }
+            if (start != 0L) {
+                IntervalStats.forClass(_task._intervalClassName).running.record(
+                    (System.nanoTime() - start) / 1000L);
+            }
         }
     }
 
     /**
-     * Note (log) that we were unable to be posted to our RunQueue because it is no longer running.
+     * Expires the interval if the given task is still scheduled.
+     *
+     * @deprecated an interval now keeps one task for its whole life and tells its schedules apart
+     * by generation, use {@link #safelyExpire(int, int)}.
      */
-    protected void noteRejected ()
+    @Deprecated
+    protected final void safelyExpire (IntervalTask task)
     {
-        log.warning("Interval posted to shutdown RunQueue. Cancelling.",
-            "queue", _runQueue, "interval", this);
+        if (task == _task) {
+            safelyExpire(task.generation(), 0);
+        }
     }
 
+    /**
+     * Creates a daemon timer.
+     *
+     * @deprecated intervals no longer share a static timer, they are run by the {@link
+     * IntervalScheduler} installed with {@link #setScheduler}. To run them on a timer thread,
+     * install a {@link TimerScheduler}.
+     */
+    @Deprecated
     protected static Timer createTimer ()
     {
         return new Timer("samskivert Interval Timer", true);
     }
 
     /**
-     * The task that schedules actually runs the interval.
+     * Note (log) that we were unable to be posted to our RunQueue because it is no longer running.
+     */
+    protected void noteRejected ()
+    {
+        log.warning("Interval posted to shutdown RunQueue. Cancelling.",
+            "queue", _runQueue, "interval", this);
+    }
+
+    /**
+     * The task that schedules actually runs the interval. Each interval has exactly one task,
+     * which is reused for every schedule. Schedules are told apart by a generation number that is
+     * advanced whenever the interval is scheduled or cancelled. Whether a schedule allocates is up
+     * to the scheduler: {@link TimingWheelScheduler} keeps one entry per task and does not, while
+     * {@link TimerScheduler} and {@link ExecutorScheduler} hand a new runnable to their timer or
+     * service each time.
+     *
+     * <p>When a task is scheduled, the {@link IntervalScheduler} records its {@link
+     * #generation()} and passes it to {@link #fire(int, long)} each time the deadline is
+     * reached.</p>
      */
-    protected static class IntervalTask extends TimerTask
+    public static class IntervalTask
     {
         public IntervalTask (Interval interval)
         {
@@ -232,72 +478,575 @@ public abstract class Interval
             _intervalClassName = interval.getClass().getName();
         }
 
-        @Override public boolean cancel ()
+        /**
+         * Returns the generation of the task's current schedule.
+         */
+        public int generation ()
         {
-            // remove the reference back to the interval, allowing the Interval itself
-            // to be gc'd even as this Task potentially sits on the Timer queue.
-            _interval = null;
-            return super.cancel();
+            return _generation;
         }
 
-        @Override public void run () {
-            Interval ival = _interval;
-            if (ival == null) {
-                return;
-            }
+        /**
+         * Posts an expiration of the given generation to the interval's executor. Does nothing if
+         * the interval has since been cancelled or rescheduled.
+         *
+         * @param scheduledTime the time at which this expiration was due, in epoch millis.
+         */
+        public void fire (int generation, long scheduledTime)
+        {
+            boolean stats = IntervalStats.isEnabled();
+            IntervalScheduler scheduler;
+            Runner runner;
+            synchronized (this) {
+                if (generation != _generation) {
+                    return;
+                }
+                if (!isCurrent(generation)) {
+                    // our group was cancelled, take ourselves off the scheduler
+                    unschedule();
+                    return;
+                }
+                if (!_repeating) {
+                    noteEnded(false);
+                }
 
-            if (_runner == null) { // lazy initialize _runner
-                _runner = new RunBuddy() {
-                    public void run () {
-                        Interval ival = _interval;
-                        if (ival != null) {
-                            ival.safelyExpire(IntervalTask.this);
-                        }
-                    }
-                    public Interval getInterval () {
-                        return _interval;
-                    }
-                    public String getIntervalClassName () {
-                        return _intervalClassName;
+                // the clock of the scheduler that fired us, which need not be the global one
+                scheduler = _scheduler;
+                int missed = 0;
+                CatchUp catchUp = _interval._catchUp;
+                if (_fixedRate && catchUp != CatchUp.FIRE_ALL && _periodNanos >= 1000000L) {
+                    if (scheduledTime <= _skipUntil) {
+                        // covered by an earlier expiration that caught up
+                        return;
                     }
-                    @Override
-                    public String toString () {
-                        Interval ival = _interval;
-                        return (ival != null) ? ival.toString() : "(Interval was cancelled)";
+                    long now = scheduler.currentTimeMillis(this);
+                    long lateNanos = (now - scheduledTime) * 1000000L;
+                    long behind = lateNanos / _periodNanos;
+                    if (behind > 0) {
+                        // the scheduler is about to fire these back to back, drop them
+                        _skipUntil = scheduledTime + behind * _periodNanos / 1000000L;
+                        if (catchUp == CatchUp.COALESCE) {
+                            missed = (int)Math.min(behind, Integer.MAX_VALUE);
+                        }
                     }
-                };
+                }
+
+                if (_paused && defer(generation, missed)) {
+                    return;
+                }
+                runner = queue(generation, missed, stats);
+            }
+            if (stats) {
+                IntervalStats.noteFired(scheduledTime);
+                IntervalStats.forClass(_intervalClassName).lateness.record(
+                    scheduler.currentTimeMillis(this) - scheduledTime);
+            }
+            if (runner != null) {
+                post(runner, scheduledTime);
             }
+        }
 
+        /**
+         * Posts the expiration held back by {@link Interval#pauseAll()}, if it is still current.
+         */
+        protected void resume ()
+        {
+            boolean stats = IntervalStats.isEnabled();
+            Runner runner;
+            long now;
+            synchronized (this) {
+                if (!_deferred) {
+                    return;
+                }
+                _deferred = false;
+                if (!isCurrent(_deferredGeneration)) {
+                    return;
+                }
+                int missed = (_interval._catchUp == CatchUp.COALESCE) ? _deferredMissed : 0;
+                runner = queue(_deferredGeneration, missed, stats);
+                now = _scheduler.currentTimeMillis(this);
+            }
+            if (runner != null) {
+                post(runner, now);
+            }
+        }
+
+        /**
+         * Holds back an expiration while intervals are paused. Returns false if they have been
+         * resumed in the meantime, in which case the expiration should be posted as usual. Must be
+         * called with the task's lock held.
+         */
+        protected boolean defer (int generation, int missed)
+        {
+            synchronized (_deferredTasks) {
+                if (!_paused) {
+                    return false;
+                }
+                if (!_deferred) {
+                    _deferred = true;
+                    _deferredTasks.add(this);
+                } else if (_deferredGeneration == generation) {
+                    // the expiration already held back is another one we missed
+                    missed += _deferredMissed + 1;
+                }
+                _deferredGeneration = generation;
+                _deferredMissed = missed;
+                return true;
+            }
+        }
+
+        /**
+         * Sets up our runner to expire the given generation, returning it if it needs to be
+         * posted, or null if it is already waiting on the run queue. Must be called with the
+         * task's lock held.
+         */
+        protected Runner queue (int generation, int missed, boolean stats)
+        {
+            if (_queued) {
+                // our runner is still waiting on the run queue from a previous expiration, fold
+                // this expiration into it rather than posting another copy
+                long folded = (generation == _postedGeneration) ? _postedMissed + 1L : 0L;
+                _postedMissed = (int)Math.min(folded + missed, Integer.MAX_VALUE);
+                _postedGeneration = generation;
+                if (stats) {
+                    IntervalStats.forClass(_intervalClassName).noteCoalesced();
+                }
+                return null;
+            }
+            _queued = true;
+            _postedGeneration = generation;
+            _postedMissed = missed;
+            _runner._postedNanos = stats ? System.nanoTime() : 0L;
+            return _runner;
+        }
+
+        /**
+         * Posts the given runner to the interval's executor.
+         */
+        protected void post (Runner runner, long scheduledTime)
+        {
+            Interval ival = _interval;
             try {
-                ival._runQueue.execute(_runner);
+                if (_batched) {
+                    ExpiryBatch.forExecutor(ival._runQueue).add(runner, scheduledTime);
+                } else {
+                    ival._runQueue.execute(runner);
+                }
             } catch (Exception e) {
+                runner.dropped();
                 log.warning("Failed to execute interval on run-queue",
                     "queue", ival._runQueue, "interval", ival, e);
             }
         }
 
-        /** If we are using a RunQueue, the Runnable we post to it. */
-        protected RunBuddy _runner;
+        /**
+         * Returns true if the given generation is the current schedule of this task and the
+         * task's group, if any, has not been cancelled since.
+         */
+        public boolean isCurrent (int generation)
+        {
+            IntervalGroup group = _group;
+            return generation == _generation &&
+                (group == null || group._generation == _groupGeneration);
+        }
+
+        /**
+         * Cancels any current schedule and sets the task up for a new one on the given scheduler.
+         * Must be called with the task's lock held. Returns the generation of the new schedule.
+         */
+        protected int prepare (IntervalScheduler scheduler, long repeatDelay, boolean fixedRate)
+        {
+            return prepareNanos(scheduler, repeatDelay * 1000000L, fixedRate);
+        }
+
+        /**
+         * Like {@link #prepare}, with the repeat delay in nanoseconds.
+         */
+        protected int prepareNanos (IntervalScheduler scheduler, long repeatDelayNanos,
+            boolean fixedRate)
+        {
+            unschedule();
+            _scheduler = scheduler;
+            _repeating = (repeatDelayNanos != 0L);
+            _fixedRate = fixedRate && _repeating;
+            _periodNanos = repeatDelayNanos;
+            _skipUntil = Long.MIN_VALUE;
+            IntervalGroup group = _interval._group;
+            _group = group;
+            if (group != null) {
+                _groupGeneration = group._generation;
+            }
+            noteScheduled();
+            return _generation;
+        }
+
+        /**
+         * Cancels the current schedule, if any, and moves on to the next generation so that any
+         * expirations already posted do not run. Must be called with the task's lock held.
+         */
+        protected void unschedule ()
+        {
+            _generation++;
+            noteEnded(true);
+            if (_queued) {
+                // the runner may never come back, for example if the executor discarded it, so
+                // leave it behind and start the next schedule with a new one
+                _runner = new Runner();
+                _runner._replacement = true;
+                _queued = false;
+            }
+            IntervalScheduler scheduler = _scheduler;
+            if (scheduler != null) {
+                _scheduler = null;
+                scheduler.cancel(this);
+            }
+        }
+
+        /**
+         * Counts the task as live in the statistics for its class, if they are enabled. Must be
+         * called with the task's lock held.
+         */
+        protected void noteScheduled ()
+        {
+            if (IntervalStats.isEnabled()) {
+                _liveStats = IntervalStats.forClass(_intervalClassName);
+                _liveStats.noteScheduled();
+            }
+        }
+
+        /**
+         * Stops counting the task as live, if it is. Must be called with the task's lock held.
+         */
+        protected void noteEnded (boolean cancelled)
+        {
+            IntervalStats stats = _liveStats;
+            if (stats != null) {
+                _liveStats = null;
+                // stats discarded by a reset no longer count the task
+                if (stats.isCurrent()) {
+                    stats.noteEnded(cancelled);
+                }
+            }
+        }
+
+        /**
+         * The runnable posted to the interval's RunQueue. Each task has exactly one, which is
+         * posted at most once at a time and reads the generation it expires when it runs.
+         */
+        protected class Runner implements RunBuddy
+        {
+            public void run ()
+            {
+                int generation, missed;
+                long posted;
+                synchronized (IntervalTask.this) {
+                    if (this != _runner) {
+                        return; // left behind by an earlier schedule
+                    }
+                    generation = _postedGeneration;
+                    missed = _postedMissed;
+                    posted = _postedNanos;
+                    _queued = false;
+                }
+                if (posted != 0L) {
+                    IntervalStats.forClass(_intervalClassName).queued.record(
+                        (System.nanoTime() - posted) / 1000L);
+                }
+                _interval.safelyExpire(generation, missed);
+            }
+
+            public Interval getInterval ()
+            {
+                return isCurrent() ? _interval : null;
+            }
+
+            public String getIntervalClassName ()
+            {
+                return _intervalClassName;
+            }
+
+            @Override
+            public String toString ()
+            {
+                return isCurrent() ? _interval.toString() : "(Interval was cancelled)";
+            }
+
+            /**
+             * Called if this runner could not be posted, or was removed from the RunQueue
+             * without being run.
+             */
+            protected void dropped ()
+            {
+                synchronized (IntervalTask.this) {
+                    if (this == _runner) {
+                        _queued = false;
+                    }
+                }
+            }
+
+            protected boolean isCurrent ()
+            {
+                return IntervalTask.this.isCurrent(_postedGeneration);
+            }
 
-        /** The interval this task is for. We have this reference back to our interval rather
-         * than just being a non-static inner class because when a TimerTask is cancelled
-         * it still sits on the Timer's queue until its execution time is reached. We want
-         * any references held by the interval to be collectable during this period, so our
-         * cancel removes the reference back to the Interval. */
-        protected Interval _interval;
+            /** The System.nanoTime() at which we were posted, or 0 if not gathering stats. */
+            protected long _postedNanos;
+
+            /** Whether we replace a runner that was left on the RunQueue and may have been lost
+             * with it, until we are first added to an {@link ExpiryBatch}. */
+            protected boolean _replacement;
+        }
+
+        /** The Runnable we post to the RunQueue whenever it is not already queued. Replaced only
+         * when a schedule ends while it is queued, see {@link #unschedule}. */
+        protected Runner _runner = new Runner();
+
+        /** The interval this task is for. Schedulers let go of a task as soon as it is
+         * cancelled, so this reference does not keep a cancelled interval alive. */
+        protected final Interval _interval;
 
         /** The class name of the interval (so that we can identify it after cancellation). */
-        protected String _intervalClassName;
+        protected final String _intervalClassName;
+
+        /** The generation of the current schedule. */
+        protected volatile int _generation;
+
+        /** Whether {@link #_runner} is waiting on the RunQueue. */
+        protected boolean _queued;
+
+        /** The generation {@link #_runner} was last posted for. */
+        protected volatile int _postedGeneration;
+
+        /** The number of expirations folded into the pending run of {@link #_runner}. */
+        protected int _postedMissed;
+
+        /** Whether the current schedule repeats. */
+        protected boolean _repeating;
+
+        /** Whether the current schedule repeats at a fixed rate, and its period in nanoseconds. */
+        protected boolean _fixedRate;
+        protected long _periodNanos;
+
+        /** Expirations due at or before this time were folded into an earlier one. */
+        protected long _skipUntil;
+
+        /** Whether an expiration is held back by {@link Interval#pauseAll()}, its generation
+         * and the number of further expirations it stands for. */
+        protected boolean _deferred;
+        protected int _deferredGeneration;
+        protected int _deferredMissed;
+
+        /** The group of the interval when the current schedule was made, if any. */
+        protected volatile IntervalGroup _group;
+
+        /** The generation of {@link #_group} when the current schedule was made. */
+        protected volatile int _groupGeneration;
+
+        /** The stats in which the current schedule is counted as live, if any. */
+        protected IntervalStats _liveStats;
+
+        /** The scheduler this task is scheduled on, or null if it is not scheduled. */
+        protected IntervalScheduler _scheduler;
+
+        /** State kept by the scheduler for this task, e.g. the TimerTask it queued. */
+        protected volatile Object _handle;
 
     } // end: static class IntervalTask
 
+    /**
+     * Collects the expirations bound for one executor and runs them from a single post to it.
+     * While a batch is posted, expirations are added to the next batch, which is posted as soon
+     * as the current one completes. The two batches swap arrays, so a steady flow of expirations
+     * does not allocate.
+     */
+    protected static class ExpiryBatch implements Runnable
+    {
+        /**
+         * Returns the batch for the given executor, creating it if needed.
+         */
+        public static ExpiryBatch forExecutor (Executor executor)
+        {
+            ExpiryBatch batch = _batches.get(executor);
+            if (batch == null) {
+                ExpiryBatch created = new ExpiryBatch(executor);
+                batch = _batches.putIfAbsent(executor, created);
+                if (batch == null) {
+                    batch = created;
+                }
+            }
+            return batch;
+        }
+
+        public ExpiryBatch (Executor executor)
+        {
+            _executor = executor;
+        }
+
+        /**
+         * Adds an expiration to the pending batch, posting the batch if it is not already. A
+         * runner that replaces one left on the executor posts the batch regardless, since the
+         * batch may have been lost along with it.
+         */
+        public void add (IntervalTask.Runner runner, long scheduledTime)
+        {
+            synchronized (this) {
+                boolean replacement = runner._replacement;
+                runner._replacement = false;
+                if (_pendingCount == _pending.length) {
+                    _pending = Arrays.copyOf(_pending, _pendingCount * 2);
+                    _pendingTimes = Arrays.copyOf(_pendingTimes, _pendingCount * 2);
+                }
+                _pending[_pendingCount] = runner;
+                _pendingTimes[_pendingCount] = scheduledTime;
+                _pendingCount++;
+                if (_posted && !replacement) {
+                    return;
+                }
+                _posted = true;
+            }
+            post();
+        }
+
+        @Override public void run ()
+        {
+            IntervalTask.Runner[] running;
+            long[] times;
+            int count;
+            synchronized (this) {
+                if (_pendingCount == 0) {
+                    // an extra post, whose expirations an earlier one has already run
+                    _posted = false;
+                    return;
+                }
+                running = _pending;
+                times = _pendingTimes;
+                count = _pendingCount;
+                if (_spare != null) {
+                    _pending = _spare;
+                    _pendingTimes = _spareTimes;
+                    _spare = null;
+                    _spareTimes = null;
+                } else {
+                    // another post of this batch is running with the spare arrays
+                    _pending = new IntervalTask.Runner[count];
+                    _pendingTimes = new long[count];
+                }
+                _pendingCount = 0;
+            }
+
+            sortByTime(running, times, count);
+            for (int ii = 0; ii < count; ii++) {
+                IntervalTask.Runner runner = running[ii];
+                running[ii] = null;
+                try {
+                    runner.run();
+                } catch (Throwable t) {
+                    log.warning("Batched interval failed", "interval", runner, t);
+                }
+            }
+
+            synchronized (this) {
+                _spare = running;
+                _spareTimes = times;
+                if (_pendingCount == 0) {
+                    _posted = false;
+                    return;
+                }
+            }
+            // more expirations arrived while we were running, post again rather than looping so
+            // that we don't hog the executor
+            post();
+        }
+
+        @Override public String toString ()
+        {
+            return "ExpiryBatch [executor=" + _executor + "]";
+        }
+
+        protected void post ()
+        {
+            try {
+                _executor.execute(this);
+            } catch (RuntimeException e) {
+                // the executor is gone, drop what we have so that the tasks don't stay queued
+                synchronized (this) {
+                    for (int ii = 0; ii < _pendingCount; ii++) {
+                        _pending[ii].dropped();
+                        _pending[ii] = null;
+                    }
+                    _pendingCount = 0;
+                    _posted = false;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Insertion sorts the runners by scheduled time. Batches are normally in order already
+         * since schedulers fire in deadline order, making this linear.
+         */
+        protected static void sortByTime (IntervalTask.Runner[] runners, long[] times, int count)
+        {
+            for (int ii = 1; ii < count; ii++) {
+                IntervalTask.Runner runner = runners[ii];
+                long time = times[ii];
+                int jj = ii - 1;
+                for (; jj >= 0 && times[jj] > time; jj--) {
+                    runners[jj + 1] = runners[jj];
+                    times[jj + 1] = times[jj];
+                }
+                runners[jj + 1] = runner;
+                times[jj + 1] = time;
+            }
+        }
+
+        /** The executor we post to. */
+        protected final Executor _executor;
+
+        /** Whether we are posted to, or running on, our executor. */
+        protected boolean _posted;
+
+        /** The expirations waiting for the next run, and their scheduled times. */
+        protected IntervalTask.Runner[] _pending = new IntervalTask.Runner[16];
+        protected long[] _pendingTimes = new long[16];
+        protected int _pendingCount;
+
+        /** The arrays of the last batch to run, reused for the next one, or null while a run
+         * has them. */
+        protected IntervalTask.Runner[] _spare = new IntervalTask.Runner[16];
+        protected long[] _spareTimes = new long[16];
+
+        /** The batch for each executor that has been used in batched mode. */
+        protected static final ConcurrentMap<Executor, ExpiryBatch> _batches =
+            new ConcurrentHashMap<Executor, ExpiryBatch>();
+    }
+
     /** The RunQueue used to run the expired() method for this Interval, or {@link #RUN_DIRECT} to
      * indicate that the interval should be executed directly on the Inteval timer thread. */
     protected Executor _runQueue;
 
-    /** The task that actually schedules our execution with the static Timer. */
-    protected volatile IntervalTask _task;
+    /** The group we belong to, if any. */
+    protected volatile IntervalGroup _group;
+
+    /** How late we may expire, see {@link #setTolerance(long)}. */
+    protected volatile long _tolerance;
+
+    /** What we do about missed expirations, see {@link #setCatchUp(CatchUp)}. */
+    protected volatile CatchUp _catchUp = CatchUp.FIRE_ALL;
+
+    /** The task that actually schedules our execution with the scheduler. */
+    protected final IntervalTask _task = new IntervalTask(this);
+
+    /** The scheduler used for all new schedules. */
+    protected static volatile IntervalScheduler _scheduler = new TimerScheduler();
+
+    /** Whether expirations are dispatched in batches, see {@link #setBatchedDispatch}. */
+    protected static volatile boolean _batched;
+
+    /** Whether expirations are held back, see {@link #pauseAll()}. Changed with the lock of
+     * {@link #_deferredTasks} held. */
+    protected static volatile boolean _paused;
 
-    /** The daemon timer used to schedule all intervals. */
-    protected static Timer _timer = createTimer();
+    /** The tasks with an expiration held back while paused. */
+    protected static final List<IntervalTask> _deferredTasks = Lists.newArrayList();
 }
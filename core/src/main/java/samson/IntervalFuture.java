@@ -0,0 +1,307 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Preconditions;
+
+import react.Connection;
+import react.RFuture;
+import react.RPromise;
+import react.Slot;
+import react.Try;
+
+/**
+ * A promise completed by an {@link Interval}, for composing delays and timeouts with the {@link
+ * RFuture} combinators instead of subclassing {@code Interval}:
+ *
+ * <pre>
+ * IntervalFuture.timeout(server.fetchProfile(), 5000, Interval.PLAYN).
+ *     onFailure(showOfflineMessage);
+ * IntervalFuture.delay(300, Interval.PLAYN).onSuccess(startAnimation);
+ * </pre>
+ *
+ * <p>Each future completes on the executor it was created with, so its listeners run there. It
+ * completes at most once: whichever of its timer, its source or {@link #cancel()} gets there
+ * first wins. As soon as it completes, its interval is cancelled, so nothing is left in the
+ * scheduler.</p>
+ */
+public class IntervalFuture<T> extends RPromise<T>
+{
+    /**
+     * Returns a future that succeeds on the given executor after the given number of
+     * milliseconds.
+     */
+    public static IntervalFuture<Void> delay (long millis, Executor executor)
+    {
+        final IntervalFuture<Void> future = new IntervalFuture<Void>(executor);
+        future.start(millis, new Runnable() {
+            public void run () {
+                future.succeed(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns a future that completes like the given one, on the given executor, or fails with a
+     * {@link TimeoutException} if the given one has not completed within the given number of
+     * milliseconds.
+     */
+    public static <T> IntervalFuture<T> timeout (final RFuture<T> source, final long millis,
+        Executor executor)
+    {
+        final IntervalFuture<T> future = new IntervalFuture<T>(executor);
+        future.start(millis, new Runnable() {
+            public void run () {
+                future.fail(new TimeoutException("Timed out after " + millis + "ms"));
+            }
+        });
+        // listen through a connection, so that a source that outlives us does not keep the
+        // listener once we complete
+        future._source = source.isComplete().connectNotify(new Slot<Boolean>() {
+            @Override public void onEmit (Boolean complete) {
+                if (complete) {
+                    source.onComplete(future.completerOn());
+                }
+            }
+        });
+        if (future.isDone()) {
+            future.disconnectSource();
+        }
+        return future;
+    }
+
+    /**
+     * Returns a future that completes with the result of the given attempt, retrying it after
+     * failures. The first attempt is made right away, on the given executor, and each retry
+     * waits twice as long as the previous one, starting with the given backoff, up to {@link
+     * #MAX_BACKOFF_MILLIS}. If the last of
+     * the given number of attempts fails, the future fails with its cause. Cancelling the future
+     * stops further attempts.
+     */
+    public static <T> IntervalFuture<T> retry (Callable<RFuture<T>> attempt, int maxAttempts,
+        long backoffMillis, Executor executor)
+    {
+        Preconditions.checkArgument(maxAttempts > 0, "Need at least one attempt");
+        Preconditions.checkArgument(backoffMillis >= 0L, "Negative backoff.");
+        IntervalFuture<T> future = new IntervalFuture<T>(executor);
+        executor.execute(future.new Retry(attempt, maxAttempts, backoffMillis));
+        return future;
+    }
+
+    /**
+     * Creates a future that completes on the given executor. It completes only when {@link
+     * #succeed}, {@link #fail} or {@link #cancel} is called, until {@link #start} is used.
+     */
+    public IntervalFuture (Executor executor)
+    {
+        _executor = Preconditions.checkNotNull(executor);
+        _interval = new Interval(executor) {
+            @Override public void expired () {
+                Runnable action = _onExpired;
+                if (action != null && !isDone()) {
+                    action.run();
+                }
+            }
+        };
+    }
+
+    /**
+     * Fails this future with a {@link CancellationException}, unless it has already completed.
+     * Returns false if it had. May be called from any thread; the failure is delivered on the
+     * future's executor.
+     */
+    public boolean cancel ()
+    {
+        if (!claim()) {
+            return false;
+        }
+        _executor.execute(new Runnable() {
+            public void run () {
+                IntervalFuture.super.fail(new CancellationException());
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Returns whether this future has completed, or is about to.
+     */
+    public boolean isDone ()
+    {
+        synchronized (this) {
+            return _done;
+        }
+    }
+
+    /**
+     * Succeeds this future, unless it has already completed.
+     */
+    @Override public void succeed (T value)
+    {
+        if (claim()) {
+            super.succeed(value);
+        }
+    }
+
+    /**
+     * Fails this future, unless it has already completed.
+     */
+    @Override public void fail (Throwable cause)
+    {
+        if (claim()) {
+            super.fail(cause);
+        }
+    }
+
+    /**
+     * Runs the given action on our executor after the given delay, unless we complete first.
+     * Supersedes any previous call.
+     */
+    protected void start (long millis, Runnable action)
+    {
+        _onExpired = action;
+        _interval.schedule(millis);
+    }
+
+    /**
+     * Marks this future as complete and releases its interval. Returns false if it already was.
+     */
+    protected boolean claim ()
+    {
+        synchronized (this) {
+            if (_done) {
+                return false;
+            }
+            _done = true;
+        }
+        _interval.cancel();
+        _onExpired = null;
+        disconnectSource();
+        return true;
+    }
+
+    /**
+     * Stops listening to the source of a {@link #timeout}, if any.
+     */
+    protected void disconnectSource ()
+    {
+        Connection source = _source;
+        if (source != null) {
+            _source = null;
+            source.disconnect();
+        }
+    }
+
+    /**
+     * Returns a slot that completes this future with the results it receives, on our executor.
+     */
+    protected Slot<Try<T>> completerOn ()
+    {
+        return new Slot<Try<T>>() {
+            @Override public void onEmit (final Try<T> result) {
+                _executor.execute(new Runnable() {
+                    public void run () {
+                        complete(result);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Completes this future with the given result, unless it has already completed.
+     */
+    protected void complete (Try<T> result)
+    {
+        if (result.isSuccess()) {
+            succeed(result.get());
+        } else {
+            fail(result.getFailure());
+        }
+    }
+
+    /**
+     * Makes the attempts of a {@link #retry}. Runs on our executor.
+     */
+    protected class Retry implements Runnable
+    {
+        public Retry (Callable<RFuture<T>> attempt, int maxAttempts, long backoffMillis)
+        {
+            _attempt = attempt;
+            _attemptsLeft = maxAttempts;
+            _backoff = backoffMillis;
+        }
+
+        public void run ()
+        {
+            if (isDone()) {
+                return;
+            }
+            _attemptsLeft--;
+            RFuture<T> result;
+            try {
+                result = _attempt.call();
+            } catch (Throwable t) {
+                result = RFuture.failure(t);
+            }
+            result.onComplete(new Slot<Try<T>>() {
+                @Override public void onEmit (final Try<T> result) {
+                    _executor.execute(new Runnable() {
+                        public void run () {
+                            attempted(result);
+                        }
+                    });
+                }
+            });
+        }
+
+        protected void attempted (Try<T> result)
+        {
+            if (result.isSuccess() || _attemptsLeft == 0) {
+                complete(result);
+                return;
+            }
+            // checked under the lock claim() takes, so a concurrent cancel either stops the
+            // retry here or cancels the interval we start
+            synchronized (IntervalFuture.this) {
+                if (_done) {
+                    return;
+                }
+                start(_backoff, this);
+            }
+            _backoff = (_backoff >= MAX_BACKOFF_MILLIS / 2) ?
+                Math.max(_backoff, MAX_BACKOFF_MILLIS) : _backoff * 2;
+        }
+
+        protected final Callable<RFuture<T>> _attempt;
+        protected int _attemptsLeft;
+        protected long _backoff;
+    }
+
+    /** The longest a {@link #retry} waits between attempts, unless given a longer backoff. */
+    public static final long MAX_BACKOFF_MILLIS = 10 * 60 * 1000L;
+
+    /** The executor we complete on. */
+    protected final Executor _executor;
+
+    /** Runs {@link #_onExpired} after a delay. */
+    protected final Interval _interval;
+
+    /** What to do when {@link #_interval} expires, or null. */
+    protected volatile Runnable _onExpired;
+
+    /** Our listener on the source of a {@link #timeout}, until we complete. */
+    protected volatile Connection _source;
+
+    /** Whether we have completed, or are about to. */
+    protected boolean _done;
+}
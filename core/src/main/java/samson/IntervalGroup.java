@@ -0,0 +1,126 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+/**
+ * A set of intervals that can be scheduled together and cancelled together, for example all of
+ * the intervals owned by a screen. Cancelling the group is O(1): it advances a generation that all
+ * member schedules check before they expire, rather than visiting each interval. Cancelled
+ * members leave their scheduler the next time they come due.
+ *
+ * <p>Members may still be scheduled and cancelled individually. Any schedule of a member made
+ * before {@link #cancelAll()} is cancelled by it, unless the interval has left the group in the
+ * meantime.</p>
+ */
+public class IntervalGroup
+{
+    /**
+     * Adds the given interval to this group. An interval may belong to only one group.
+     *
+     * @throws IllegalStateException if the interval is in another group.
+     */
+    public void add (Interval interval)
+    {
+        synchronized (this) {
+            Preconditions.checkState(interval._group == null || interval._group == this,
+                "Interval already in a group");
+            interval._group = this;
+            _members.add(interval);
+        }
+    }
+
+    /**
+     * Removes the given interval from this group. Its current schedule, if any, leaves the group
+     * too: it runs as if made outside the group, and a later {@link #cancelAll()} does not cancel
+     * it. A schedule already cancelled by the group stays cancelled.
+     */
+    public void remove (Interval interval)
+    {
+        synchronized (this) {
+            if (!_members.remove(interval)) {
+                return;
+            }
+            interval._group = null;
+            // under our lock, so that no cancelAll() can come between the check and the detach
+            Interval.IntervalTask task = interval._task;
+            synchronized (task) {
+                if (task._group == this && task._groupGeneration == _generation) {
+                    task._group = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of intervals in the group.
+     */
+    public synchronized int size ()
+    {
+        return _members.size();
+    }
+
+    /**
+     * Schedules every member to expire once after the given delay, superseding their previous
+     * schedules. See {@link #schedule(long, long, boolean)}.
+     */
+    public void schedule (long delay)
+    {
+        schedule(delay, 0L, true);
+    }
+
+    /**
+     * Schedules every member with the given delays, superseding their previous schedules. This has
+     * the same effect as calling {@link Interval#schedule(long, long, boolean)} on each member,
+     * but schedulers that have a lock of their own, such as {@link TimingWheelScheduler}, take it
+     * only once for the whole group.
+     */
+    public void schedule (long initialDelay, long repeatDelay, boolean fixedRate)
+    {
+        Preconditions.checkArgument(initialDelay >= 0L, "Negative delay.");
+        Preconditions.checkArgument(repeatDelay >= 0L, "Negative repeat delay.");
+        Interval[] members;
+        synchronized (this) {
+            members = _members.toArray(new Interval[_members.size()]);
+        }
+
+        IntervalScheduler scheduler = Interval._scheduler;
+        int count = members.length;
+        Interval.IntervalTask[] tasks = new Interval.IntervalTask[count];
+        int[] generations = new int[count];
+        long[] delays = new long[count];
+        for (int ii = 0; ii < count; ii++) {
+            Interval.IntervalTask task = members[ii]._task;
+            synchronized (task) {
+                generations[ii] = task.prepare(scheduler, repeatDelay, fixedRate);
+            }
+            tasks[ii] = task;
+            delays[ii] = members[ii].applyTolerance(initialDelay);
+        }
+        scheduler.scheduleAll(tasks, generations, delays, count, repeatDelay, fixedRate);
+    }
+
+    /**
+     * Cancels the current schedules of all members, and ensures that any of their expirations
+     * that are queued up but have not yet run do not run. Runs in constant time.
+     */
+    public void cancelAll ()
+    {
+        synchronized (this) {
+            _generation++;
+        }
+    }
+
+    /** The current generation, advanced by each {@link #cancelAll()}. */
+    protected volatile int _generation;
+
+    /** The members of the group. */
+    protected final Set<Interval> _members = Sets.newLinkedHashSet();
+}
@@ -0,0 +1,131 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+/**
+ * The engine that keeps track of pending {@link Interval} deadlines and fires them. All intervals
+ * share the scheduler installed with {@link Interval#setScheduler(IntervalScheduler)}, by default
+ * a {@link TimerScheduler}.
+ *
+ * <p>A scheduler only deals with the timing side of an interval. When a deadline is reached, it
+ * calls {@link Interval.IntervalTask#fire(int, long)}, which posts the expiration to the
+ * interval's executor and takes care of ignoring cancelled or superseded schedules.</p>
+ */
+public abstract class IntervalScheduler
+{
+    /**
+     * Returns the current time in epoch milliseconds according to this scheduler's clock. This is
+     * the system clock unless the scheduler runs on a clock of its own, such as {@link
+     * VirtualScheduler}.
+     */
+    public long currentTimeMillis ()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the current time in epoch milliseconds according to the clock that fires the given
+     * task. This is {@link #currentTimeMillis()} unless the scheduler hands tasks on to others
+     * with clocks of their own, such as {@link ShardedScheduler}.
+     */
+    protected long currentTimeMillis (Interval.IntervalTask task)
+    {
+        return currentTimeMillis();
+    }
+
+    /**
+     * Returns the period, in nanoseconds, at which the given task repeats when scheduled with the
+     * given repeat delay by {@link #scheduleNanos}. The default rounds up to whole milliseconds,
+     * like {@code scheduleNanos} itself.
+     */
+    protected long periodNanos (Interval.IntervalTask task, long repeatDelayNanos)
+    {
+        return nanosToMillis(repeatDelayNanos) * 1000000L;
+    }
+
+    /**
+     * Schedules the given task to be run after the given delay and then, if {@code repeatDelay}
+     * is not zero, repeatedly. Both delays are in milliseconds and non-negative. Any previous
+     * schedule of the task has already been cancelled. Implementations may use {@link
+     * Interval.IntervalTask#_handle} to keep their own state.
+     *
+     * <p>The task's {@link Interval.IntervalTask#generation()} must be read here and passed to
+     * every {@link Interval.IntervalTask#fire(int, long)} for this schedule, along with the time
+     * (in epoch milliseconds) at which that run was due.</p>
+     *
+     * @param fixedRate for repeating tasks, whether the repeat delay is measured from the
+     * scheduled time of the previous run (true) or its actual time (false).
+     */
+    protected abstract void schedule (Interval.IntervalTask task, long initialDelay,
+        long repeatDelay, boolean fixedRate);
+
+    /**
+     * Schedules the given task with delays in nanoseconds, see {@link Interval#scheduleNanos}.
+     * Otherwise the same as {@link #schedule}. The default implementation rounds the delays up
+     * to whole milliseconds; schedulers with a finer clock, such as {@link PreciseScheduler},
+     * override this.
+     */
+    protected void scheduleNanos (Interval.IntervalTask task, long initialDelayNanos,
+        long repeatDelayNanos, boolean fixedRate)
+    {
+        schedule(task, nanosToMillis(initialDelayNanos), nanosToMillis(repeatDelayNanos),
+            fixedRate);
+    }
+
+    /**
+     * Schedules several tasks at once, see {@link IntervalGroup#schedule}. Each task whose
+     * generation is no longer the one given for it has been rescheduled or cancelled by another
+     * thread in the meantime and must be skipped. The default implementation schedules each task
+     * in turn; schedulers with a lock of their own should override this to take it only once.
+     *
+     * @param initialDelays the initial delay of each task.
+     */
+    protected void scheduleAll (Interval.IntervalTask[] tasks, int[] generations,
+        long[] initialDelays, int count, long repeatDelay, boolean fixedRate)
+    {
+        for (int ii = 0; ii < count; ii++) {
+            Interval.IntervalTask task = tasks[ii];
+            synchronized (task) {
+                if (task.generation() == generations[ii]) {
+                    schedule(task, initialDelays[ii], repeatDelay, fixedRate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the given task from the schedule so that it will not be run again. This may be
+     * called more than once for the same task, and from any thread.
+     */
+    protected abstract void cancel (Interval.IntervalTask task);
+
+    /**
+     * Stops any thread this scheduler has started, for when it is retired, for example after
+     * another has been installed with {@link Interval#setScheduler}. Intervals still scheduled on
+     * it will not expire, and it must not be used again. The default implementation does
+     * nothing.
+     */
+    public void shutdown ()
+    {
+    }
+
+    /**
+     * Releases what this scheduler still holds for cancelled intervals, for schedulers that keep
+     * them queued until their deadline. Worth calling after cancelling many far off intervals.
+     * The default implementation does nothing.
+     */
+    public void purge ()
+    {
+    }
+
+    /**
+     * Converts the given nanoseconds to milliseconds, rounding up.
+     */
+    protected static long nanosToMillis (long nanos)
+    {
+        return (nanos + 999999L) / 1000000L;
+    }
+}
@@ -0,0 +1,283 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Timing statistics for the intervals of one class, gathered while {@link #setEnabled(boolean)
+ * enabled}. Intended to be sampled at runtime, for example by a debug overlay or a periodic log
+ * dump:
+ *
+ * <pre>
+ * IntervalStats.setEnabled(true);
+ * // ...
+ * for (Map.Entry&lt;String, IntervalStats&gt; entry : IntervalStats.snapshot().entrySet()) {
+ *     log.info("Intervals", "class", entry.getKey(), "stats", entry.getValue());
+ * }
+ * </pre>
+ *
+ * <p>Recording is lock free. When disabled, the only cost to intervals is a volatile read.</p>
+ */
+public class IntervalStats
+{
+    /**
+     * A histogram of non-negative values in power of two buckets, updated atomically.
+     */
+    public static class Histogram
+    {
+        /**
+         * Adds a value, negative values are counted as zero.
+         */
+        public void record (long value)
+        {
+            value = Math.max(0L, value);
+            _buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            _count.incrementAndGet();
+            _total.addAndGet(value);
+            long max;
+            while (value > (max = _max.get()) && !_max.compareAndSet(max, value)) {}
+        }
+
+        /** Returns the number of values recorded. */
+        public long count ()
+        {
+            return _count.get();
+        }
+
+        /** Returns the largest value recorded. */
+        public long max ()
+        {
+            return _max.get();
+        }
+
+        /** Returns the mean of the values recorded, or 0 if there are none. */
+        public double mean ()
+        {
+            long count = _count.get();
+            return count == 0 ? 0 : (double)_total.get() / count;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile (0 to 100) of the values recorded. The
+         * bound is the top of the power of two bucket in which the percentile falls.
+         */
+        public long percentile (double percent)
+        {
+            long count = 0;
+            for (int ii = 0; ii < BUCKETS; ii++) {
+                count += _buckets.get(ii);
+            }
+            long target = (long)Math.ceil(count * percent / 100);
+            long seen = 0;
+            for (int ii = 0; ii < BUCKETS; ii++) {
+                seen += _buckets.get(ii);
+                if (seen >= target && seen > 0) {
+                    return ii == 0 ? 0 : Math.min(_max.get(), (1L << ii) - 1);
+                }
+            }
+            return 0;
+        }
+
+        @Override public String toString ()
+        {
+            return "[n=" + count() + ", mean=" + Math.round(mean()) + ", p50=" + percentile(50) +
+                ", p99=" + percentile(99) + ", max=" + max() + "]";
+        }
+
+        protected static final int BUCKETS = 65;
+        protected final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+        protected final AtomicLong _count = new AtomicLong(), _total = new AtomicLong();
+        protected final AtomicLong _max = new AtomicLong();
+    }
+
+    /** Milliseconds between the time an expiration was due and the time it fired. */
+    public final Histogram lateness = new Histogram();
+
+    /** Microseconds that an expiration waited on the interval's executor before running. */
+    public final Histogram queued = new Histogram();
+
+    /** Microseconds spent in {@link Interval#expired()}. */
+    public final Histogram running = new Histogram();
+
+    /**
+     * Enables or disables statistics gathering. Statistics already gathered are kept.
+     */
+    public static void setEnabled (boolean enabled)
+    {
+        _enabled = enabled;
+    }
+
+    /**
+     * Returns whether statistics are being gathered.
+     */
+    public static boolean isEnabled ()
+    {
+        return _enabled;
+    }
+
+    /**
+     * Returns the statistics for the intervals of the given class, creating them if needed.
+     */
+    public static IntervalStats forClass (String intervalClassName)
+    {
+        IntervalStats stats = _stats.get(intervalClassName);
+        if (stats == null) {
+            IntervalStats created = new IntervalStats();
+            stats = _stats.putIfAbsent(intervalClassName, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the statistics gathered so far, by interval class name, sorted by name.
+     */
+    public static Map<String, IntervalStats> snapshot ()
+    {
+        Map<String, IntervalStats> snapshot = Maps.newTreeMap();
+        snapshot.putAll(_stats);
+        return snapshot;
+    }
+
+    /**
+     * Returns the number of expirations fired while enabled, across all intervals.
+     */
+    public static long expirations ()
+    {
+        return _expirations.get();
+    }
+
+    /**
+     * Returns the number of distinct deadlines fired while enabled, across all intervals. The
+     * schedulers fire every expiration that shares a deadline in one pass on one thread, so
+     * changes of deadline are counted per firing thread, and this is the number of times a
+     * scheduler thread woke up to do work. Comparing it to {@link #expirations()} shows how well
+     * {@link Interval#setTolerance(long) tolerances} are coalescing wakeups.
+     */
+    public static long wakeups ()
+    {
+        return _wakeups.get();
+    }
+
+    /**
+     * Discards all statistics gathered so far. Intervals that are currently scheduled are no
+     * longer counted as live.
+     */
+    public static void reset ()
+    {
+        _generation.incrementAndGet();
+        _stats.clear();
+        _expirations.set(0);
+        _wakeups.set(0);
+    }
+
+    /**
+     * Returns the number of intervals of this class that are currently scheduled.
+     */
+    public int live ()
+    {
+        return _live.get();
+    }
+
+    /**
+     * Returns the number of schedules of this class that were cancelled or superseded before
+     * they expired for the last time.
+     */
+    public long cancelled ()
+    {
+        return _cancelled.get();
+    }
+
+    /**
+     * Returns the number of expirations of this class that were folded into a previous one
+     * because it was still waiting on the interval's executor.
+     */
+    public long coalesced ()
+    {
+        return _coalesced.get();
+    }
+
+    @Override public String toString ()
+    {
+        return "IntervalStats [live=" + live() + ", cancelled=" + cancelled() + ", coalesced=" +
+            coalesced() + ", lateness=" + lateness + ", queued=" + queued + ", running=" +
+            running + "]";
+    }
+
+    /**
+     * Returns whether these statistics are still in use, that is they have not been discarded by
+     * a {@link #reset()} since they were created.
+     */
+    protected boolean isCurrent ()
+    {
+        return _createdGeneration == _generation.get();
+    }
+
+    /** Notes that an interval was scheduled. */
+    protected void noteScheduled ()
+    {
+        _live.incrementAndGet();
+    }
+
+    /** Notes that a schedule ended, by cancellation or by its final expiration. */
+    protected void noteEnded (boolean cancelled)
+    {
+        _live.decrementAndGet();
+        if (cancelled) {
+            _cancelled.incrementAndGet();
+        }
+    }
+
+    /** Notes that an expiration was folded into one already waiting to run. */
+    protected void noteCoalesced ()
+    {
+        _coalesced.incrementAndGet();
+    }
+
+    /** Notes that an expiration due at the given time fired. */
+    protected static void noteFired (long scheduledTime)
+    {
+        _expirations.incrementAndGet();
+        long[] last = _lastDeadline.get();
+        int generation = _generation.get();
+        if (last[0] != scheduledTime || last[1] != generation) {
+            last[0] = scheduledTime;
+            last[1] = generation;
+            _wakeups.incrementAndGet();
+        }
+    }
+
+    /** The {@link #_generation} in which these statistics were created. */
+    protected final int _createdGeneration = _generation.get();
+
+    protected final AtomicInteger _live = new AtomicInteger();
+    protected final AtomicLong _cancelled = new AtomicLong(), _coalesced = new AtomicLong();
+
+    protected static volatile boolean _enabled;
+    protected static final AtomicLong _expirations = new AtomicLong(), _wakeups = new AtomicLong();
+
+    /** Advanced by each {@link #reset()}, so that state from before it can be told apart. */
+    protected static final AtomicInteger _generation = new AtomicInteger();
+
+    /** The deadline last fired by each thread and the generation in which it fired. */
+    protected static final ThreadLocal<long[]> _lastDeadline = new ThreadLocal<long[]>() {
+        @Override protected long[] initialValue () {
+            return new long[] { Long.MIN_VALUE, -1L };
+        }
+    };
+    protected static final ConcurrentMap<String, IntervalStats> _stats =
+        new ConcurrentHashMap<String, IntervalStats>();
+}
@@ -0,0 +1,315 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import static samson.Log.log;
+
+/**
+ * Detects intervals whose {@link Interval#expired()} method runs for too long, blocking their
+ * executor. When {@link Interval#PLAYN} is blocked, so is the frame loop. Once a {@link
+ * #setThreshold(long) threshold} is set, every expiration is timed, and a daemon thread samples the
+ * stack of any expiration that is still running when the threshold is crossed. Each stall is
+ * logged, and the worst ones are kept for inspection at runtime:
+ *
+ * <pre>
+ * IntervalWatchdog.setThreshold(50);
+ * // ...
+ * for (IntervalWatchdog.Stall stall : IntervalWatchdog.worst()) {
+ *     log.info("Slow interval", "stall", stall);
+ * }
+ * </pre>
+ *
+ * <p>Off by default. When off, the only cost to intervals is a volatile read.</p>
+ */
+public class IntervalWatchdog
+{
+    /**
+     * An expiration that ran for longer than the threshold.
+     */
+    public static class Stall
+    {
+        /** The class name of the interval. */
+        public final String intervalClassName;
+
+        /** The name of the thread the expiration ran on. */
+        public final String threadName;
+
+        /** How long the expiration ran, in milliseconds. */
+        public final long millis;
+
+        /** The time at which the expiration finished, in epoch millis. */
+        public final long when;
+
+        /** The stack of the expiration once it had run past the threshold, or null if the
+         * sampler did not get to it before it finished. */
+        public final StackTraceElement[] stack;
+
+        public Stall (String intervalClassName, String threadName, long millis, long when,
+            StackTraceElement[] stack)
+        {
+            this.intervalClassName = intervalClassName;
+            this.threadName = threadName;
+            this.millis = millis;
+            this.when = when;
+            this.stack = stack;
+        }
+
+        @Override public String toString ()
+        {
+            StringBuilder buf = new StringBuilder("Stall [interval=").append(intervalClassName)
+                .append(", thread=").append(threadName).append(", millis=").append(millis)
+                .append("]");
+            if (stack != null) {
+                for (StackTraceElement elem : stack) {
+                    buf.append("\n\tat ").append(elem);
+                }
+            }
+            return buf.toString();
+        }
+    }
+
+    /** The number of stalls kept by {@link #worst()}. */
+    public static final int CAPACITY = 16;
+
+    /**
+     * Sets the number of milliseconds an expiration may run before it is considered a stall, or
+     * 0 to stop watching. Stalls already recorded are kept.
+     */
+    public static void setThreshold (long millis)
+    {
+        Preconditions.checkArgument(millis >= 0L, "Negative threshold.");
+        synchronized (_active) {
+            _thresholdNanos = millis * 1000000L;
+            if (millis > 0L && _sampler == null) {
+                _sampler = new Thread("samson Interval Watchdog") {
+                    @Override public void run () {
+                        sampleLoop();
+                    }
+                };
+                _sampler.setDaemon(true);
+                _sampler.start();
+            }
+        }
+    }
+
+    /**
+     * Returns the threshold set with {@link #setThreshold(long)}, in milliseconds.
+     */
+    public static long threshold ()
+    {
+        return _thresholdNanos / 1000000L;
+    }
+
+    /**
+     * Returns the longest stalls seen since the last {@link #reset()}, longest first. At most
+     * {@link #CAPACITY} are kept.
+     */
+    public static List<Stall> worst ()
+    {
+        List<Stall> worst = Lists.newArrayListWithCapacity(CAPACITY);
+        synchronized (_worst) {
+            for (Stall stall : _worst) {
+                if (stall != null) {
+                    worst.add(stall);
+                }
+            }
+        }
+        Collections.sort(worst, LONGEST_FIRST);
+        return worst;
+    }
+
+    /**
+     * Returns the number of stalls seen since the last {@link #reset()}.
+     */
+    public static long stalls ()
+    {
+        return _stalls.get();
+    }
+
+    /**
+     * Discards the stalls recorded so far.
+     */
+    public static void reset ()
+    {
+        synchronized (_worst) {
+            Arrays.fill(_worst, null);
+        }
+        _stalls.set(0);
+    }
+
+    /**
+     * Starts timing an expiration of an interval of the given class on the current thread.
+     * Returns null if the watchdog is off, otherwise the watch to pass to {@link #end(Watch)}.
+     */
+    protected static Watch begin (String intervalClassName)
+    {
+        if (_thresholdNanos == 0L) {
+            return null;
+        }
+        // an expiration may run others synchronously, each gets a watch of its own
+        Watch watch = _watches.get();
+        _watches.set(watch.nested());
+        watch.intervalClassName = intervalClassName;
+        watch.start = System.nanoTime();
+        _active.add(watch);
+        return watch;
+    }
+
+    /**
+     * Finishes timing the expiration started by {@link #begin(String)}, recording a stall if it
+     * ran for longer than the threshold.
+     */
+    protected static void end (Watch watch)
+    {
+        _active.remove(watch);
+        _watches.set(watch);
+        long nanos = System.nanoTime() - watch.start;
+        long threshold = _thresholdNanos;
+        if (threshold == 0L || nanos < threshold) {
+            return;
+        }
+
+        StackTraceElement[] stack = (watch.sampledStart == watch.start) ? watch.stack : null;
+        watch.stack = null;
+        Stall stall = new Stall(watch.intervalClassName, watch.thread.getName(),
+            nanos / 1000000L, System.currentTimeMillis(), stack);
+        _stalls.incrementAndGet();
+        log.warning("Interval stalled its executor", "interval", stall.intervalClassName,
+            "thread", stall.threadName, "millis", stall.millis);
+
+        synchronized (_worst) {
+            // replace the shortest stall kept, if this one is longer
+            int shortest = 0;
+            for (int ii = 0; ii < CAPACITY; ii++) {
+                if (_worst[ii] == null) {
+                    shortest = ii;
+                    break;
+                }
+                if (_worst[ii].millis < _worst[shortest].millis) {
+                    shortest = ii;
+                }
+            }
+            if (_worst[shortest] == null || _worst[shortest].millis < stall.millis) {
+                _worst[shortest] = stall;
+            }
+        }
+    }
+
+    /**
+     * The body of the sampler thread. Captures the stack of each expiration that has run past
+     * the threshold, once per expiration, until the watchdog is turned off.
+     */
+    protected static void sampleLoop ()
+    {
+        while (true) {
+            long threshold;
+            synchronized (_active) {
+                threshold = _thresholdNanos;
+                if (threshold == 0L) {
+                    _sampler = null;
+                    return;
+                }
+            }
+
+            long now = System.nanoTime();
+            for (Watch watch : _active) {
+                long start = watch.start;
+                if (now - start < threshold || watch.sampledStart == start) {
+                    continue;
+                }
+                StackTraceElement[] stack = watch.thread.getStackTrace();
+                // only keep the sample if the same expiration is still running
+                if (watch.start == start && _active.contains(watch)) {
+                    watch.stack = stack;
+                    watch.sampledStart = start;
+                }
+            }
+
+            try {
+                Thread.sleep(Math.max(1L, threshold / 4000000L));
+            } catch (InterruptedException ie) {
+                // keep going, we're a daemon
+            }
+        }
+    }
+
+    /**
+     * Tracks an expiration running on one thread. Each thread reuses its own watches, one per
+     * level of expirations run from inside others.
+     */
+    protected static class Watch
+    {
+        /**
+         * Returns the watch for expirations run from inside the one this watch is tracking.
+         */
+        public Watch nested ()
+        {
+            if (_nested == null) {
+                _nested = new Watch();
+            }
+            return _nested;
+        }
+
+        /** The thread this watch belongs to. */
+        public final Thread thread = Thread.currentThread();
+
+        /** The class name of the interval being expired. */
+        public volatile String intervalClassName;
+
+        /** The System.nanoTime() at which the expiration started. */
+        public volatile long start;
+
+        /** The start of the expiration that {@link #stack} was sampled from. */
+        public volatile long sampledStart;
+
+        /** The stack sampled from the running expiration. */
+        public volatile StackTraceElement[] stack;
+
+        /** The watch for the next level down, once needed. */
+        protected Watch _nested;
+    }
+
+    /** Orders stalls longest first. */
+    protected static final Comparator<Stall> LONGEST_FIRST = new Comparator<Stall>() {
+        @Override public int compare (Stall s1, Stall s2) {
+            return s1.millis > s2.millis ? -1 : (s1.millis == s2.millis ? 0 : 1);
+        }
+    };
+
+    /** The threshold in nanoseconds, or 0 if the watchdog is off. */
+    protected static volatile long _thresholdNanos;
+
+    /** The sampler thread, if running. Changed with the lock of {@link #_active} held. */
+    protected static Thread _sampler;
+
+    /** The watches of expirations that are currently running. */
+    protected static final Set<Watch> _active =
+        Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+
+    /** The watch for the next expiration on each thread that runs them. */
+    protected static final ThreadLocal<Watch> _watches = new ThreadLocal<Watch>() {
+        @Override protected Watch initialValue () {
+            return new Watch();
+        }
+    };
+
+    /** The longest stalls seen, in no particular order. */
+    protected static final Stall[] _worst = new Stall[CAPACITY];
+
+    /** The number of stalls seen. */
+    protected static final AtomicLong _stalls = new AtomicLong();
+}
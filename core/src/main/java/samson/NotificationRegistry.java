@@ -0,0 +1,333 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+import playn.core.Json;
+import playn.core.PlayN;
+import playn.core.Storage;
+import playn.core.json.JsonParserException;
+
+import static samson.Log.log;
+
+/**
+ * Keeps the identifiers of pending notifications for a {@link Notifications} implementation that
+ * needs them to survive restarts, such as one whose notifications are delivered by the system
+ * after the app has exited. The identifiers are stored as a JSON object, {@code {"ids":[...]}},
+ * under a given key of {@link PlayN#storage()}.
+ *
+ * <p>The registry also hands out automatic identifiers, for notifications that have none of their
+ * own, see {@link #allocate()}. Their high-water mark is stored alongside, as {@code "next"}.</p>
+ *
+ * <p>The set is read from storage once, on first use, and then kept in memory. Changes are
+ * written back later, on the PlayN thread by default, and all the changes made before a write
+ * gets to run go out in that one write, so scheduling many notifications costs a few writes
+ * rather than one each. Use {@link #flush()} where a change must be on disk before going on, for
+ * example before handing an identifier to the system, which may deliver it to a new process. All
+ * methods are thread safe, but PlayN storage is not documented to be, so writes should be done
+ * where the application uses storage itself.</p>
+ */
+public class NotificationRegistry
+{
+    /**
+     * Creates a registry stored under the given key that writes on the PlayN thread.
+     */
+    public NotificationRegistry (String storageKey)
+    {
+        this(storageKey, Interval.PLAYN);
+    }
+
+    /**
+     * Creates a registry stored under the given key that writes on the given executor.
+     */
+    public NotificationRegistry (String storageKey, Executor writer)
+    {
+        _storageKey = Preconditions.checkNotNull(storageKey);
+        _writer = Preconditions.checkNotNull(writer);
+    }
+
+    /**
+     * Adds the given identifier. Returns false if it was already present.
+     */
+    public synchronized boolean add (int id)
+    {
+        if (!load().add(id)) {
+            return false;
+        }
+        changed();
+        return true;
+    }
+
+    /**
+     * Adds all of the given identifiers, for the cost of a single write.
+     */
+    public synchronized void addAll (Iterable<Integer> ids)
+    {
+        boolean changed = false;
+        Set<Integer> loaded = load();
+        for (Integer id : ids) {
+            changed |= loaded.add(id);
+        }
+        if (changed) {
+            changed();
+        }
+    }
+
+    /**
+     * Allocates and adds an automatic identifier, in constant time. Automatic identifiers are
+     * negative, to stay clear of the typically positive identifiers chosen by applications, and
+     * those that have been removed are reused before new ones are made. The lowest one made so
+     * far, the high-water mark, is saved with the identifiers, so that automatic identifiers stay
+     * unique across restarts.
+     *
+     * @throws IllegalArgumentException if all negative identifiers are in use.
+     */
+    public synchronized int allocate ()
+    {
+        Set<Integer> loaded = load();
+        int id;
+        do {
+            if (!_free.isEmpty()) {
+                id = _free.pop();
+            } else if (_next > Integer.MIN_VALUE) {
+                id = _next--;
+            } else {
+                throw new IllegalArgumentException("Out of automatic notification ids");
+            }
+        } while (!loaded.add(id)); // an application identifier may be using it
+        changed();
+        return id;
+    }
+
+    /**
+     * Removes the given identifier. Returns false if it was not present.
+     */
+    public synchronized boolean remove (int id)
+    {
+        if (!load().remove(id)) {
+            return false;
+        }
+        if (isAutomatic(id)) {
+            _free.push(id);
+        }
+        changed();
+        return true;
+    }
+
+    /**
+     * Removes all identifiers. This also resets the automatic identifiers.
+     */
+    public synchronized void clear ()
+    {
+        Set<Integer> loaded = load();
+        if (!loaded.isEmpty() || _next != FIRST_AUTOMATIC) {
+            loaded.clear();
+            _free.clear();
+            _next = FIRST_AUTOMATIC;
+            changed();
+        }
+    }
+
+    /**
+     * Returns whether the given identifier is present.
+     */
+    public synchronized boolean contains (int id)
+    {
+        return load().contains(id);
+    }
+
+    /**
+     * Returns the number of identifiers present.
+     */
+    public synchronized int size ()
+    {
+        return load().size();
+    }
+
+    /**
+     * Returns a copy of the identifiers present.
+     */
+    public synchronized Set<Integer> ids ()
+    {
+        return Sets.newHashSet(load());
+    }
+
+    /**
+     * Writes any unsaved changes to storage on the calling thread. Does nothing if there are
+     * none, for example because a background write already took care of them.
+     */
+    public void flush ()
+    {
+        // writes are serialized so that an older snapshot can never overwrite a newer one
+        synchronized (_writeLock) {
+            String encoded;
+            synchronized (this) {
+                if (!_dirty) {
+                    return;
+                }
+                _dirty = false;
+                encoded = encode();
+            }
+            storage().setItem(_storageKey, encoded);
+        }
+    }
+
+    /**
+     * Returns the storage to read and write. By default, {@link PlayN#storage()}.
+     */
+    protected Storage storage ()
+    {
+        return PlayN.storage();
+    }
+
+    /**
+     * Returns the JSON implementation to use. By default, {@link PlayN#json()}.
+     */
+    protected Json json ()
+    {
+        return PlayN.json();
+    }
+
+    /**
+     * Returns the identifiers, reading them from storage if this is the first use. Called with
+     * the monitor held.
+     */
+    protected Set<Integer> load ()
+    {
+        if (_ids == null) {
+            _ids = Sets.newHashSet();
+            decode(storage().getItem(_storageKey));
+
+            // everything between the high-water mark and the first automatic identifier that is
+            // not in use can be reused; this is bounded by the most automatic identifiers that
+            // have ever been pending at once
+            for (int id = FIRST_AUTOMATIC; id > _next; id--) {
+                if (!_ids.contains(id)) {
+                    _free.push(id);
+                }
+            }
+        }
+        return _ids;
+    }
+
+    /**
+     * Returns whether the given identifier is in the range handed out by {@link #allocate()}.
+     * Called with the monitor held.
+     */
+    protected boolean isAutomatic (int id)
+    {
+        return id <= FIRST_AUTOMATIC && id > _next;
+    }
+
+    /**
+     * Notes that the identifiers have changed and queues a write, unless one is already queued.
+     * Called with the monitor held.
+     */
+    protected void changed ()
+    {
+        if (_dirty) {
+            return; // the queued write will pick this up
+        }
+        _dirty = true;
+        _writer.execute(new Runnable() {
+            public void run () {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    log.warning("Failed to save notification ids", "key", _storageKey, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the identifiers and high-water mark from their stored form into our fields. Discards
+     * the stored value if it is unreadable. Called with the monitor held.
+     */
+    protected void decode (String jsondata)
+    {
+        if (jsondata == null) {
+            return;
+        }
+        try {
+            Json.Object jsonobj = json().parse(jsondata);
+            Json.Array array = jsonobj.getArray(JSON_KEY_IDS);
+            if (array != null) {
+                for (int ii = 0, nn = array.length(); ii < nn; ii++) {
+                    _ids.add(array.getInt(ii));
+                }
+            }
+            if (jsonobj.containsKey(JSON_KEY_NEXT)) {
+                _next = Math.min(jsonobj.getInt(JSON_KEY_NEXT), FIRST_AUTOMATIC);
+            } else {
+                // saved before there was a mark, when ids were found by probing down from -1
+                while (_next > Integer.MIN_VALUE && _ids.contains(_next)) {
+                    _next--;
+                }
+            }
+        } catch (JsonParserException exception) {
+            log.warning("Failed to parse notification ids", "key", _storageKey,
+                "jsondata", jsondata, exception);
+            storage().removeItem(_storageKey);
+        }
+    }
+
+    /**
+     * Returns the stored form of our identifiers and high-water mark. Called with the monitor
+     * held.
+     */
+    protected String encode ()
+    {
+        Json.Array jsonids = json().createArray();
+        for (int id : _ids) {
+            jsonids.add(id);
+        }
+        Json.Object jsonobj = json().createObject();
+        jsonobj.put(JSON_KEY_IDS, jsonids);
+        jsonobj.put(JSON_KEY_NEXT, _next);
+
+        Json.Writer writer = json().newWriter().useVerboseFormat(false).object();
+        jsonobj.write(writer);
+        writer.end();
+        return writer.write();
+    }
+
+    /** Json key in the storage for notification identifiers. */
+    protected static final String JSON_KEY_IDS = "ids";
+
+    /** Json key in the storage for the next new automatic identifier. */
+    protected static final String JSON_KEY_NEXT = "next";
+
+    /** The first automatic identifier. */
+    protected static final int FIRST_AUTOMATIC = -1;
+
+    /** The storage key of our identifiers. */
+    protected final String _storageKey;
+
+    /** Where the writes are done. */
+    protected final Executor _writer;
+
+    /** Serializes writes to storage. */
+    protected final Object _writeLock = new Object();
+
+    /** The identifiers, once loaded. */
+    protected Set<Integer> _ids;
+
+    /** The next new automatic identifier, one below the lowest made so far. */
+    protected int _next = FIRST_AUTOMATIC;
+
+    /** Automatic identifiers that have been removed, for reuse. */
+    protected final ArrayDeque<Integer> _free = new ArrayDeque<Integer>();
+
+    /** Whether {@link #_ids} has changes not yet written, in which case a write is queued. */
+    protected boolean _dirty;
+}
@@ -5,8 +5,12 @@
 
 package samson;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import react.RList;
@@ -15,7 +19,10 @@ import react.RList;
  * Interface for scheduling and handling notifications. Applications schedule notifications by
  * creating a builder with {@link #builder()}, setting the desired fields, then invoking {@link
  * Builder#schedule(long)}. The notification may be canceled. Incoming notifications may be polled
- * or listened to using {@link #arrived()}.
+ * or listened to using {@link #arrived()}. Many notifications are best scheduled at once, with
+ * {@link Builder#at(long)} and {@link #scheduleAll(List)}.
+ * <p>Redundant notifications can be collapsed before they reach the platform, see {@link
+ * #setReplaceById(boolean)} and {@link #setGroupWindow(long)}.</p>
  * <p>Note: if an application schedules notifications, it must also listen for them and clear the
  * queue.</p>
  */
@@ -50,6 +57,23 @@ public abstract class Notifications
             return data.get(ID);
         }
 
+        /**
+         * Gets the group of the notification, if any. Reflects the value given in {@link
+         * Builder#group(String)}.
+         */
+        public String group () {
+            return data.get(GROUP);
+        }
+
+        /**
+         * Gets the number of notifications collapsed into this one, see {@link
+         * Notifications#setGroupWindow(long)}.
+         */
+        public int count () {
+            String count = data.get(COUNT);
+            return count == null ? 1 : Integer.parseInt(count);
+        }
+
         private Incoming (Map<String, String> data, boolean wasActive) {
             this.data = data;
             this.wasActive = wasActive;
@@ -70,6 +94,15 @@ public abstract class Notifications
             return data(ID, id);
         }
 
+        /**
+         * Sets the group of the notification. This is implemented as a {@link #data(String,
+         * String)} call with a fixed key. Notifications of the same group may be collapsed into
+         * one, see {@link Notifications#setGroupWindow(long)}.
+         */
+        public Builder group (String group) {
+            return data(GROUP, group);
+        }
+
         /**
          * Sets the sound path to use. For iOS, this is the path to a sound in the main bundle. By
          * default, the system attempts to use the default notification sound.
@@ -145,6 +178,15 @@ public abstract class Notifications
             return this;
         }
 
+        /**
+         * Sets the time for the notification to popup in epoch milliseconds, for use with {@link
+         * Notifications#scheduleAll(List)}. By default, the notification pops up right away.
+         */
+        public Builder at (long time) {
+            _time = time;
+            return this;
+        }
+
         /**
          * Schedules the notification to popup at the given epoch milliseconds. For example,
          * {@code System.currentTimeMillis() + 60000} for one minute from now.
@@ -152,7 +194,24 @@ public abstract class Notifications
          * <p>This method will return null if the notification fails to schedule.</p>
          */
         public Handle schedule (long time) {
-            return Notifications.this.schedule(time, this);
+            _time = time;
+            return Notifications.this.schedule(this);
+        }
+
+        /**
+         * Returns a new builder with the same fields as this one, and its own copy of the data.
+         */
+        protected Builder copy () {
+            Builder copy = new Builder();
+            copy._time = _time;
+            copy._message = _message;
+            copy._icon = _icon;
+            copy._title = _title;
+            copy._soundPath = _soundPath;
+            copy._silent = _silent;
+            copy._vibrate = _vibrate;
+            copy._data.putAll(_data);
+            return copy;
         }
 
         @Override public String toString () {
@@ -160,6 +219,9 @@ public abstract class Notifications
                 + _silent + ", _data=" + _data + "]";
         }
 
+        /** The time to popup, see {@link #at(long)}. */
+        protected long _time;
+
         /** The message. */
         protected String _message;
 
@@ -190,6 +252,77 @@ public abstract class Notifications
         return new Builder();
     }
 
+    /**
+     * Schedules the given notifications, each at the time given to its {@link Builder#at(long)}.
+     * This is the same as calling {@link Builder#schedule(long)} on each, but lets the platform
+     * share the work between them, which makes it much cheaper for many notifications. Returns
+     * the handles of the notifications, in order, with null for those that failed to schedule.
+     */
+    public List<Handle> scheduleAll (List<Builder> builders) {
+        return isCoalescing() ? coalesce(builders) : schedule(builders);
+    }
+
+    /**
+     * Sets whether a notification replaces the pending one with the same {@link Builder#id}, if
+     * any, instead of being shown as well. The handle of the replaced notification no longer
+     * does anything. Off by default.
+     */
+    public void setReplaceById (boolean replace) {
+        synchronized (_coalesceLock) {
+            _replaceById = replace;
+        }
+    }
+
+    /**
+     * Sets a window for collapsing notifications of the same {@link Builder#group}, using the
+     * PlayN thread. See {@link #setGroupWindow(long, Executor)}.
+     */
+    public void setGroupWindow (long millis) {
+        setGroupWindow(millis, Interval.PLAYN);
+    }
+
+    /**
+     * Sets a window for collapsing notifications of the same {@link Builder#group}. A grouped
+     * notification is held back for the given number of milliseconds, and others of its group
+     * scheduled in that time are collapsed into it rather than being shown as well. The
+     * collapsed notification has the content of the last one scheduled, the earliest of their
+     * times and their number in {@link Incoming#count()}. All those scheduled share a handle,
+     * which cancels the lot. At the end of the window, the held notifications are passed to the
+     * platform on the given executor; {@link #flush()} does it earlier. Zero, the default,
+     * disables grouping.
+     */
+    public void setGroupWindow (long millis, Executor executor) {
+        List<Coalesced> held = Collections.emptyList();
+        synchronized (_coalesceLock) {
+            if (_window != null) {
+                _window.cancel();
+            }
+            _groupWindow = millis;
+            _window = (millis <= 0) ? null : new Interval(executor) {
+                @Override public void expired () {
+                    flush();
+                }
+            };
+            if (_window == null) {
+                held = takeHeld();
+            } else if (!_held.isEmpty()) {
+                _window.schedule(millis);
+            }
+        }
+        submit(held);
+    }
+
+    /**
+     * Passes the notifications held back by the group window to the platform now.
+     */
+    public void flush () {
+        List<Coalesced> held;
+        synchronized (_coalesceLock) {
+            held = takeHeld();
+        }
+        submit(held);
+    }
+
     /**
      * List of notifications received from the system. Applications should remove from this
      * appropriately, either using a listener, or periodically.
@@ -204,14 +337,269 @@ public abstract class Notifications
     public abstract void cancelAll ();
 
     protected void dispatch (Map<String, String> data, boolean active) {
+        String id = data.get(ID);
+        if (id != null) {
+            synchronized (_coalesceLock) {
+                _byId.remove(id); // delivered, so there is nothing left to replace
+            }
+        }
         _incoming.add(new Incoming(data, active));
     }
 
+    /**
+     * Drops the notifications held back by the group window and forgets those that could be
+     * replaced. Implementations call this from {@link #cancelAll()}.
+     */
+    protected void clearCoalesced () {
+        synchronized (_coalesceLock) {
+            for (Coalesced held : _held.values()) {
+                held._cancelled = true;
+            }
+            _held.clear();
+            for (Coalesced scheduled : _byId.values()) {
+                scheduled._platform = null;
+            }
+            _byId.clear();
+            if (_window != null) {
+                _window.cancel();
+            }
+        }
+    }
+
     protected abstract Handle schedule (long when, Builder builder);
 
+    /**
+     * Schedules the given notifications, see {@link #scheduleAll(List)}. The default
+     * implementation schedules each in turn; implementations with costs that can be shared
+     * should override this.
+     */
+    protected List<Handle> schedule (List<Builder> builders) {
+        List<Handle> handles = Lists.newArrayListWithCapacity(builders.size());
+        for (Builder builder : builders) {
+            handles.add(schedule(builder._time, builder));
+        }
+        return handles;
+    }
+
+    /**
+     * Schedules the given notification at its {@link Builder#_time}, applying any coalescing.
+     */
+    protected Handle schedule (Builder builder) {
+        return isCoalescing() ? coalesce(Collections.singletonList(builder)).get(0) :
+            schedule(builder._time, builder);
+    }
+
+    /**
+     * Returns whether any of the coalescing rules are enabled.
+     */
+    protected boolean isCoalescing () {
+        synchronized (_coalesceLock) {
+            return _replaceById || _groupWindow > 0;
+        }
+    }
+
+    /**
+     * Schedules the given notifications, holding back those that are grouped and collapsing them
+     * into the ones already held. Returns the handles for them.
+     */
+    protected List<Handle> coalesce (List<Builder> builders) {
+        List<Handle> handles = Lists.newArrayListWithCapacity(builders.size());
+        List<Coalesced> direct = Lists.newArrayList();
+        synchronized (_coalesceLock) {
+            for (Builder builder : builders) {
+                String group = builder._data.get(GROUP);
+                Coalesced coalesced;
+                if (group != null && _groupWindow > 0) {
+                    coalesced = _held.get(group);
+                    if (coalesced == null) {
+                        if (_held.isEmpty()) {
+                            _window.schedule(_groupWindow);
+                        }
+                        _held.put(group, coalesced = new Coalesced(group));
+                    }
+                } else {
+                    direct.add(coalesced = new Coalesced(null));
+                }
+                coalesced.merge(builder);
+                handles.add(coalesced);
+            }
+        }
+        submit(direct);
+
+        // report the notifications that failed to schedule like the platform does
+        for (int ii = 0, nn = handles.size(); ii < nn; ii++) {
+            if (((Coalesced)handles.get(ii))._failed) {
+                handles.set(ii, null);
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * Passes the given notifications to the platform in one batch, first replacing those with
+     * the same id, if enabled.
+     */
+    protected void submit (List<Coalesced> coalesced) {
+        if (coalesced.isEmpty()) {
+            return;
+        }
+        List<Coalesced> submitted = Lists.newArrayListWithCapacity(coalesced.size());
+        List<Builder> builders = Lists.newArrayListWithCapacity(coalesced.size());
+        List<Handle> replaced = Lists.newArrayList();
+        synchronized (_coalesceLock) {
+            if (_replaceById) {
+                for (Coalesced next : coalesced) {
+                    String id = next._builder._data.get(ID);
+                    if (next._cancelled || id == null) {
+                        continue;
+                    }
+                    Coalesced prev = _byId.put(id, next);
+                    if (prev != null) {
+                        // prev may be earlier in this batch, in which case it is skipped below
+                        prev._cancelled = true;
+                        if (prev._platform != null) {
+                            replaced.add(prev._platform);
+                            prev._platform = null;
+                        }
+                    }
+                }
+            }
+            for (Coalesced next : coalesced) {
+                if (!next._cancelled) {
+                    submitted.add(next);
+                    builders.add(next.build());
+                }
+            }
+        }
+
+        // cancel the replaced ones first, as the platform may identify notifications by id
+        for (Handle handle : replaced) {
+            handle.cancel();
+        }
+        List<Handle> platform = schedule(builders);
+
+        List<Handle> late = Lists.newArrayList();
+        synchronized (_coalesceLock) {
+            for (int ii = 0, nn = submitted.size(); ii < nn; ii++) {
+                Coalesced next = submitted.get(ii);
+                Handle handle = platform.get(ii);
+                if (handle == null) {
+                    next._failed = true;
+                } else if (next._cancelled) {
+                    late.add(handle); // cancelled or replaced while we were scheduling it
+                } else {
+                    next._platform = handle;
+                }
+            }
+        }
+        for (Handle handle : late) {
+            handle.cancel();
+        }
+    }
+
+    /**
+     * Removes and returns the held notifications. Called with the coalesce lock held.
+     */
+    protected List<Coalesced> takeHeld () {
+        List<Coalesced> held = Lists.newArrayList(_held.values());
+        _held.clear();
+        if (_window != null) {
+            _window.cancel();
+        }
+        return held;
+    }
+
+    /**
+     * One or more schedules collapsed into a single notification, and the handle for them.
+     */
+    protected class Coalesced implements Handle {
+        public Coalesced (String group) {
+            _group = group;
+        }
+
+        /**
+         * Adds a schedule of the given builder to this notification.
+         */
+        public void merge (Builder builder) {
+            _time = (_count == 0) ? builder._time : Math.min(_time, builder._time);
+            _builder = builder;
+            _count++;
+        }
+
+        /**
+         * Returns the builder of the collapsed notification. This is a copy of the last builder
+         * merged, which the caller may still hold and reuse.
+         */
+        public Builder build () {
+            Builder builder = _builder.copy();
+            if (_count > 1) {
+                builder.data(COUNT, String.valueOf(_count));
+            }
+            builder._time = _time;
+            return builder;
+        }
+
+        @Override public void cancel () {
+            Handle platform;
+            synchronized (_coalesceLock) {
+                if (_cancelled) {
+                    return;
+                }
+                _cancelled = true;
+                if (_group != null && _held.get(_group) == this) {
+                    _held.remove(_group);
+                }
+                String id = _builder._data.get(ID);
+                if (id != null && _byId.get(id) == this) {
+                    _byId.remove(id);
+                }
+                platform = _platform;
+                _platform = null;
+            }
+            if (platform != null) {
+                platform.cancel();
+            }
+        }
+
+        protected final String _group;
+        protected Builder _builder;
+        protected long _time;
+        protected int _count;
+
+        /** The handle from the platform, once scheduled. Guarded by the coalesce lock. */
+        protected Handle _platform;
+
+        /** Whether this was cancelled or replaced, or failed to schedule. */
+        protected boolean _cancelled, _failed;
+    }
+
     /** The list of notifications received from the system. */
     protected final RList<Incoming> _incoming = RList.create();
 
+    /** Guards the coalescing state. */
+    protected final Object _coalesceLock = new Object();
+
+    /** Whether notifications replace pending ones with the same id. */
+    protected boolean _replaceById;
+
+    /** The window for collapsing groups, or 0. */
+    protected long _groupWindow;
+
+    /** Flushes the held notifications at the end of the window. */
+    protected Interval _window;
+
+    /** The notifications held back by the window, by group. */
+    protected final Map<String, Coalesced> _held = Maps.newHashMap();
+
+    /** The notifications that may be replaced, by id. */
+    protected final Map<String, Coalesced> _byId = Maps.newHashMap();
+
     /** Key for our notification id value. */
     protected static final String ID = "notifier_id";
+
+    /** Key for our notification group value. */
+    protected static final String GROUP = "notifier_group";
+
+    /** Key for the number of notifications collapsed into one. */
+    protected static final String COUNT = "notifier_count";
 }
@@ -0,0 +1,239 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+
+import static samson.Log.log;
+
+/**
+ * Schedules intervals against {@link System#nanoTime()} deadlines on a dedicated daemon thread,
+ * for work such as network ticks and animation pacing that needs better than millisecond timing.
+ * The thread parks with {@link LockSupport#parkNanos} until shortly before each deadline and then,
+ * if a spin time is given, busy waits for the rest, which trades a little CPU for much less
+ * jitter. Use {@link Interval#scheduleNanos} for delays below a millisecond.
+ *
+ * <p>Since this costs a thread and, when spinning, CPU, it is best kept for the few intervals
+ * that need it, with the rest of the application on the default scheduler. See {@code
+ * IntervalJitter} in the benchmarks for a comparison.</p>
+ */
+public class PreciseScheduler extends IntervalScheduler
+{
+    /**
+     * Creates a scheduler that parks until each deadline without spinning.
+     */
+    public PreciseScheduler ()
+    {
+        this(0L);
+    }
+
+    /**
+     * Creates a scheduler that parks until the given number of nanoseconds before each deadline
+     * and spins for the rest. Around 100 microseconds absorbs the wakeup latency of most systems.
+     */
+    public PreciseScheduler (long spinNanos)
+    {
+        Preconditions.checkArgument(spinNanos >= 0L, "Negative spin.");
+        _spinNanos = spinNanos;
+    }
+
+    /**
+     * Returns the current time, derived from {@link System#nanoTime()} so that it agrees with
+     * the deadlines.
+     */
+    @Override
+    public long currentTimeMillis ()
+    {
+        return _millisBase + (System.nanoTime() - _nanoBase) / 1000000L;
+    }
+
+    @Override
+    protected long periodNanos (Interval.IntervalTask task, long repeatDelayNanos)
+    {
+        return repeatDelayNanos;
+    }
+
+    @Override
+    protected void schedule (Interval.IntervalTask task, long initialDelay, long repeatDelay,
+        boolean fixedRate)
+    {
+        scheduleNanos(task, initialDelay * 1000000L, repeatDelay * 1000000L, fixedRate);
+    }
+
+    @Override
+    protected void scheduleNanos (Interval.IntervalTask task, long initialDelayNanos,
+        long repeatDelayNanos, boolean fixedRate)
+    {
+        Thread wake;
+        synchronized (this) {
+            Object handle = task._handle;
+            Entry entry;
+            if (handle instanceof Entry) {
+                entry = (Entry)handle;
+                _queue.remove(entry);
+            } else {
+                entry = new Entry();
+                entry.task = task;
+                task._handle = entry;
+            }
+            entry.generation = task.generation();
+            entry.deadline = System.nanoTime() + initialDelayNanos;
+            entry.period = repeatDelayNanos;
+            entry.fixedRate = fixedRate;
+            entry.seq = _seq++;
+            _queue.add(entry);
+
+            if (_thread == null) {
+                _thread = new Thread("samson Interval Precise") {
+                    @Override public void run () {
+                        runLoop();
+                    }
+                };
+                _thread.setDaemon(true);
+                _thread.setPriority(Thread.MAX_PRIORITY);
+                _thread.start();
+            }
+            // wake the thread if it is waiting for a later deadline
+            wake = (_queue.first() == entry) ? _thread : null;
+        }
+        if (wake != null) {
+            LockSupport.unpark(wake);
+        }
+    }
+
+    @Override
+    protected void cancel (Interval.IntervalTask task)
+    {
+        Object handle = task._handle;
+        if (handle instanceof Entry) {
+            synchronized (this) {
+                _queue.remove(handle);
+            }
+        }
+    }
+
+    @Override
+    public void shutdown ()
+    {
+        Thread thread;
+        synchronized (this) {
+            _shutdown = true;
+            _queue.clear();
+            thread = _thread;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * The body of the scheduler thread. Waits for the earliest deadline and fires it.
+     */
+    protected void runLoop ()
+    {
+        while (!_shutdown) {
+            Entry first;
+            long deadline;
+            synchronized (this) {
+                first = _queue.isEmpty() ? null : _queue.first();
+                deadline = (first == null) ? 0L : first.deadline;
+            }
+            if (first == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            long wait = deadline - System.nanoTime();
+            if (wait > _spinNanos) {
+                // an earlier schedule unparks us
+                LockSupport.parkNanos(this, wait - _spinNanos);
+                continue;
+            }
+            while (deadline - System.nanoTime() > 0L) {
+                // spin out the last stretch
+            }
+
+            Interval.IntervalTask task;
+            int generation;
+            synchronized (this) {
+                if (_queue.isEmpty() || _queue.first() != first || first.deadline != deadline) {
+                    continue; // rescheduled or cancelled in the meantime
+                }
+                _queue.remove(first);
+                task = first.task;
+                generation = first.generation;
+                if (first.period != 0L) {
+                    first.deadline = (first.fixedRate ? deadline : System.nanoTime()) +
+                        first.period;
+                    first.seq = _seq++;
+                    _queue.add(first);
+                }
+            }
+            try {
+                task.fire(generation, (deadline - _nanoBase) / 1000000L + _millisBase);
+            } catch (Throwable t) {
+                log.warning("Interval task failed on precise thread", t);
+            }
+        }
+    }
+
+    /**
+     * A pending expiration. Entries stay with their task and are reused by later schedules.
+     */
+    protected static class Entry
+    {
+        /** The task this entry belongs to. */
+        public Interval.IntervalTask task;
+
+        /** The generation of the task's schedule. */
+        public int generation;
+
+        /** The System.nanoTime() at which the task is next due. */
+        public long deadline;
+
+        /** The repeat delay in nanoseconds, or 0. */
+        public long period;
+
+        /** Whether repeats are measured from the deadline or from the time fired. */
+        public boolean fixedRate;
+
+        /** Breaks ties between equal deadlines, in order of scheduling. */
+        public long seq;
+    }
+
+    /** Orders entries by deadline, then by the order in which they were scheduled. */
+    protected static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override public int compare (Entry e1, Entry e2) {
+            long diff = e1.deadline - e2.deadline;
+            if (diff != 0L) {
+                return diff < 0L ? -1 : 1;
+            }
+            return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+        }
+    };
+
+    /** How long before each deadline to stop parking and spin. */
+    protected final long _spinNanos;
+
+    /** The pending expirations. */
+    protected final TreeSet<Entry> _queue = new TreeSet<Entry>(ORDER);
+
+    /** The next tie breaker. */
+    protected long _seq;
+
+    /** Set by {@link #shutdown()} to stop the scheduler thread. */
+    protected volatile boolean _shutdown;
+
+    /** The thread that fires the deadlines, once started. */
+    protected Thread _thread;
+
+    /** A pair of readings of the two clocks, to convert deadlines to epoch millis. */
+    protected final long _millisBase = System.currentTimeMillis(), _nanoBase = System.nanoTime();
+}
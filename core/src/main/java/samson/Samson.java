@@ -7,6 +7,14 @@ package samson;
 
 import java.util.Comparator;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import playn.core.util.Callback;
 
 import samson.crypto.SecureUtil;
 import samson.text.DateTimeFormat;
@@ -81,6 +89,13 @@ public class Samson
          * Starts a mail message. The user must inspect, modify and tap the send button.
          */
         void startMailMessage (String subject, String[] to, String body);
+
+        /**
+         * Gets the executor for work that should not run on the game thread, such as parsing,
+         * loading and crypto. It is shared by samson and the application, so tasks should not
+         * block for long on I/O or locks. See {@link Samson#invokeInBackground}.
+         */
+        Executor backgroundExecutor ();
     }
 
     /**
@@ -134,9 +149,89 @@ public class Samson
         _instance.startMailMessage(subject, to, body);
     }
 
+    public static Executor backgroundExecutor () {
+        return _instance.backgroundExecutor();
+    }
+
+    /**
+     * Runs the given work on the {@link #backgroundExecutor()} and passes its result, or the
+     * exception it threw, to the given callback on the PlayN thread.
+     */
+    public static <T> void invokeInBackground (final Callable<T> work,
+            Callback<? super T> callback) {
+        final Callback<? super T> playnCallback = onPlayN(callback);
+        backgroundExecutor().execute(new Runnable() {
+            @Override public void run () {
+                T result;
+                try {
+                    result = work.call();
+                } catch (Throwable t) {
+                    playnCallback.onFailure(t);
+                    return;
+                }
+                playnCallback.onSuccess(result);
+            }
+        });
+    }
+
+    /**
+     * Returns a callback that passes results on to the given callback on the PlayN thread, for
+     * handing to code that completes on another thread.
+     */
+    public static <T> Callback<T> onPlayN (final Callback<T> callback) {
+        return new Callback<T>() {
+            @Override public void onSuccess (final T result) {
+                Interval.PLAYN.execute(new Runnable() {
+                    @Override public void run () {
+                        callback.onSuccess(result);
+                    }
+                });
+            }
+            @Override public void onFailure (final Throwable cause) {
+                Interval.PLAYN.execute(new Runnable() {
+                    @Override public void run () {
+                        callback.onFailure(cause);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Creates a pool of daemon threads suitable for a platform's {@link
+     * Platform#backgroundExecutor()}, with one thread per available processor but at least two, so
+     * that one long task does not hold up the rest on a single core device. Threads are started as
+     * work arrives. Platforms should normally use {@link #sharedBackgroundExecutor()} instead.
+     */
+    public static ExecutorService createBackgroundExecutor () {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override public Thread newThread (Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                    "samson Background " + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+            protected final AtomicInteger _count = new AtomicInteger();
+        });
+    }
+
+    /**
+     * Returns a pool made by {@link #createBackgroundExecutor()} on first use and shared by all
+     * platform instances after that, so that creating more than one does not leave extra pools
+     * running. Its threads are daemons, so it need not be shut down.
+     */
+    public static synchronized ExecutorService sharedBackgroundExecutor () {
+        if (_sharedBackground == null) {
+            _sharedBackground = createBackgroundExecutor();
+        }
+        return _sharedBackground;
+    }
+
     public static Platform platform () {
         return _instance;
     }
 
     private static Platform _instance;
+    private static ExecutorService _sharedBackground;
 }
@@ -0,0 +1,202 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Spreads intervals over several schedulers so that schedules, cancels and expirations coming from
+ * many threads do not all contend for one timer. Each interval always lands on the same shard, by
+ * default a {@link TimerScheduler} with its own thread, so a shard whose timer thread dies is
+ * recreated independently of the others.
+ */
+public class ShardedScheduler extends IntervalScheduler
+{
+    /** Ways of assigning intervals to shards. */
+    public enum ShardBy {
+        /** Each interval is assigned by its identity hash, spreading intervals evenly. */
+        INTERVAL,
+
+        /** Intervals are assigned by the executor they expire on, so that all of the intervals
+         * for one executor fire from the same thread, in deadline order. */
+        EXECUTOR
+    }
+
+    /**
+     * Creates a scheduler with one {@link TimerScheduler} per available processor, sharded by
+     * interval.
+     */
+    public ShardedScheduler ()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a scheduler with the given number of {@link TimerScheduler}s, sharded by interval.
+     */
+    public ShardedScheduler (int shards)
+    {
+        this(ShardBy.INTERVAL, createTimers(shards));
+    }
+
+    /**
+     * Creates a scheduler that shards intervals over the given schedulers.
+     */
+    public ShardedScheduler (ShardBy shardBy, IntervalScheduler... shards)
+    {
+        Preconditions.checkArgument(shards.length > 0, "Need at least one shard");
+        _shardBy = Preconditions.checkNotNull(shardBy);
+        _shards = shards.clone();
+    }
+
+    /**
+     * Returns the number of shards.
+     */
+    public int shardCount ()
+    {
+        return _shards.length;
+    }
+
+    @Override
+    public long currentTimeMillis ()
+    {
+        return _shards[0].currentTimeMillis();
+    }
+
+    @Override
+    protected long currentTimeMillis (Interval.IntervalTask task)
+    {
+        return shard(task).currentTimeMillis(task);
+    }
+
+    @Override
+    protected long periodNanos (Interval.IntervalTask task, long repeatDelayNanos)
+    {
+        return shard(task).periodNanos(task, repeatDelayNanos);
+    }
+
+    @Override
+    protected void schedule (Interval.IntervalTask task, long initialDelay, long repeatDelay,
+        boolean fixedRate)
+    {
+        shard(task).schedule(task, initialDelay, repeatDelay, fixedRate);
+    }
+
+    @Override
+    protected void scheduleNanos (Interval.IntervalTask task, long initialDelayNanos,
+        long repeatDelayNanos, boolean fixedRate)
+    {
+        shard(task).scheduleNanos(task, initialDelayNanos, repeatDelayNanos, fixedRate);
+    }
+
+    @Override
+    protected void scheduleAll (Interval.IntervalTask[] tasks, int[] generations,
+        long[] initialDelays, int count, long repeatDelay, boolean fixedRate)
+    {
+        // sort the tasks by shard, keeping their order within each, so that each shard gets one
+        // batch and takes its lock once
+        int shardCount = _shards.length;
+        int[] shardOf = new int[count];
+        int[] starts = new int[shardCount + 1];
+        for (int ii = 0; ii < count; ii++) {
+            shardOf[ii] = indexOf(shard(tasks[ii]));
+            starts[shardOf[ii] + 1]++;
+        }
+        for (int ss = 0; ss < shardCount; ss++) {
+            if (starts[ss + 1] == count) {
+                // all on one shard, nothing to sort
+                _shards[ss].scheduleAll(tasks, generations, initialDelays, count, repeatDelay,
+                    fixedRate);
+                return;
+            }
+            starts[ss + 1] += starts[ss];
+        }
+
+        Interval.IntervalTask[] sortedTasks = new Interval.IntervalTask[count];
+        int[] sortedGenerations = new int[count];
+        long[] sortedDelays = new long[count];
+        int[] next = Arrays.copyOf(starts, shardCount);
+        for (int ii = 0; ii < count; ii++) {
+            int pos = next[shardOf[ii]]++;
+            sortedTasks[pos] = tasks[ii];
+            sortedGenerations[pos] = generations[ii];
+            sortedDelays[pos] = initialDelays[ii];
+        }
+        for (int ss = 0; ss < shardCount; ss++) {
+            int start = starts[ss], end = starts[ss + 1];
+            if (start == end) {
+                continue;
+            }
+            _shards[ss].scheduleAll(Arrays.copyOfRange(sortedTasks, start, end),
+                Arrays.copyOfRange(sortedGenerations, start, end),
+                Arrays.copyOfRange(sortedDelays, start, end), end - start, repeatDelay, fixedRate);
+        }
+    }
+
+    @Override
+    protected void cancel (Interval.IntervalTask task)
+    {
+        shard(task).cancel(task);
+    }
+
+    @Override
+    public void shutdown ()
+    {
+        for (IntervalScheduler shard : _shards) {
+            shard.shutdown();
+        }
+    }
+
+    @Override
+    public void purge ()
+    {
+        for (IntervalScheduler shard : _shards) {
+            shard.purge();
+        }
+    }
+
+    /**
+     * Returns the shard for the given task. This must not change over the life of the task.
+     */
+    protected IntervalScheduler shard (Interval.IntervalTask task)
+    {
+        Object key = (_shardBy == ShardBy.EXECUTOR) ? task._interval._runQueue : task._interval;
+        int hash = System.identityHashCode(key);
+        hash ^= (hash >>> 16);
+        return _shards[(hash & Integer.MAX_VALUE) % _shards.length];
+    }
+
+    /**
+     * Returns the index of the given shard in {@link #_shards}.
+     */
+    protected int indexOf (IntervalScheduler shard)
+    {
+        for (int ii = 0; ii < _shards.length; ii++) {
+            if (_shards[ii] == shard) {
+                return ii;
+            }
+        }
+        throw new IllegalStateException("Not one of our shards: " + shard);
+    }
+
+    protected static IntervalScheduler[] createTimers (int count)
+    {
+        Preconditions.checkArgument(count > 0, "Need at least one shard");
+        IntervalScheduler[] timers = new IntervalScheduler[count];
+        for (int ii = 0; ii < count; ii++) {
+            timers[ii] = new TimerScheduler("samson Interval Timer " + ii);
+        }
+        return timers;
+    }
+
+    /** How intervals are assigned to shards. */
+    protected final ShardBy _shardBy;
+
+    /** The shards. */
+    protected final IntervalScheduler[] _shards;
+}
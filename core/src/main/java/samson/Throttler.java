@@ -0,0 +1,103 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs an action at most once per period while events keep coming, for example to refresh a view
+ * while the user scrolls. The first {@link #trigger()} runs the action right away, and triggers
+ * during the following period are folded into a single run at its end. Triggering only counts
+ * the event: the underlying {@link Interval} is scheduled once per period, not per event.
+ */
+public class Throttler
+{
+    /**
+     * Creates a throttler that runs the given action on {@link Interval#PLAYN} at most once per
+     * the given number of milliseconds.
+     */
+    public Throttler (long period, Runnable action)
+    {
+        this(Interval.PLAYN, period, action);
+    }
+
+    /**
+     * Creates a throttler that runs the given action on the given executor at most once per the
+     * given number of milliseconds.
+     */
+    public Throttler (Executor executor, long period, Runnable action)
+    {
+        Preconditions.checkArgument(period > 0L, "Period must be positive.");
+        _period = period;
+        _action = Preconditions.checkNotNull(action);
+        _interval = new Interval(executor) {
+            @Override public void expired () {
+                Throttler.this.expired();
+            }
+        };
+    }
+
+    /**
+     * Notes an event, running the action now if it has not run within the period, or at the
+     * end of the period otherwise. Safe to call from any thread.
+     */
+    public void trigger ()
+    {
+        _triggers.incrementAndGet();
+        if (_armed.compareAndSet(false, true)) {
+            _interval.schedule(0L);
+        }
+    }
+
+    /**
+     * Drops the pending run of the action, if any. The next trigger runs it right away.
+     */
+    public void cancel ()
+    {
+        _interval.cancel();
+        _ran = _triggers.get();
+        _armed.set(false);
+    }
+
+    protected void expired ()
+    {
+        int triggers = _triggers.get();
+        if (triggers == _ran) {
+            // the period passed without events
+            _armed.set(false);
+            // a trigger that saw us armed just now will not have scheduled us, so run for it
+            if (_triggers.get() == triggers || !_armed.compareAndSet(false, true)) {
+                return;
+            }
+            triggers = _triggers.get();
+        }
+        _ran = triggers;
+        _interval.schedule(_period);
+        _action.run();
+    }
+
+    /** The minimum time between runs, in milliseconds. */
+    protected final long _period;
+
+    /** What we run. */
+    protected final Runnable _action;
+
+    /** Expires at the end of each period, while events keep coming. */
+    protected final Interval _interval;
+
+    /** Whether {@link #_interval} is scheduled. */
+    protected final AtomicBoolean _armed = new AtomicBoolean();
+
+    /** The number of events so far. */
+    protected final AtomicInteger _triggers = new AtomicInteger();
+
+    /** The value of {@link #_triggers} when the action last ran. */
+    protected volatile int _ran;
+}
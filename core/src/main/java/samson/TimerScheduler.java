@@ -0,0 +1,138 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import static samson.Log.log;
+
+/**
+ * Schedules intervals using a daemon {@link Timer}. This is the default scheduler. A timer task
+ * cannot be scheduled twice, so each schedule allocates a new one, and a cancelled one stays on
+ * the timer's queue until its deadline, see {@link #purge()}.
+ */
+public class TimerScheduler extends IntervalScheduler
+{
+    /**
+     * Creates a scheduler whose timer thread has the default name.
+     */
+    public TimerScheduler ()
+    {
+        this("samskivert Interval Timer");
+    }
+
+    /**
+     * Creates a scheduler whose timer thread has the given name.
+     */
+    public TimerScheduler (String threadName)
+    {
+        _threadName = threadName;
+        _timer = createTimer();
+    }
+
+    @Override
+    protected void schedule (Interval.IntervalTask task, long initialDelay, long repeatDelay,
+        boolean fixedRate)
+    {
+        TimerAdapter adapter = new TimerAdapter(task, task.generation());
+        task._handle = adapter;
+
+        // try twice to schedule the task- see comment inside the catch
+        try {
+            schedule(adapter, initialDelay, repeatDelay, fixedRate);
+
+        } catch (IllegalStateException ise) {
+            // Timer.schedule will only throw this if the TimerThead was shut down.
+            // This may happen automatically in Applets, so we need to create a new
+            // Timer now. Note that in a multithreaded environment it may be possible
+            // to have more than one Timer after this happens. That would be slightly
+            // undesirable but should not break anything.
+            log.warning("Recreating timer");
+            _timer = createTimer();
+            schedule(adapter, initialDelay, repeatDelay, fixedRate);
+        }
+    }
+
+    @Override
+    protected void cancel (Interval.IntervalTask task)
+    {
+        Object handle = task._handle;
+        if (handle instanceof TimerAdapter) {
+            ((TimerAdapter)handle).cancel();
+        }
+    }
+
+    @Override
+    public void shutdown ()
+    {
+        _timer.cancel();
+    }
+
+    @Override
+    public void purge ()
+    {
+        // the timer keeps cancelled tasks queued until they come due
+        _timer.purge();
+    }
+
+    protected void schedule (TimerTask adapter, long initialDelay, long repeatDelay,
+        boolean fixedRate)
+    {
+        if (repeatDelay == 0L) {
+            _timer.schedule(adapter, initialDelay);
+        } else if (fixedRate) {
+            _timer.scheduleAtFixedRate(adapter, initialDelay, repeatDelay);
+        } else {
+            _timer.schedule(adapter, initialDelay, repeatDelay);
+        }
+    }
+
+    protected Timer createTimer ()
+    {
+        return new Timer(_threadName, true);
+    }
+
+    /**
+     * The TimerTask that sits on the timer queue on behalf of one schedule of an interval task.
+     */
+    protected static class TimerAdapter extends TimerTask
+    {
+        public TimerAdapter (Interval.IntervalTask task, int generation)
+        {
+            _task = task;
+            _generation = generation;
+        }
+
+        @Override public boolean cancel ()
+        {
+            // a cancelled TimerTask sits on the Timer's queue until its execution time is
+            // reached, so let go of the interval task (and through it the interval) right away
+            _task = null;
+            return super.cancel();
+        }
+
+        @Override public void run ()
+        {
+            Interval.IntervalTask task = _task;
+            if (task != null) {
+                task.fire(_generation, scheduledExecutionTime());
+            }
+        }
+
+        /** The task we fire, or null once cancelled. */
+        protected volatile Interval.IntervalTask _task;
+
+        /** The generation of the task's schedule that we represent. */
+        protected final int _generation;
+    }
+
+    /** The name given to our timer thread. */
+    protected final String _threadName;
+
+    /** The daemon timer used to schedule all intervals. */
+    protected volatile Timer _timer;
+}
@@ -0,0 +1,383 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+import static samson.Log.log;
+
+/**
+ * Schedules intervals on a hierarchical timing wheel driven by a single daemon thread. Scheduling
+ * and cancelling are O(1) and a cancelled interval is unlinked from the wheel immediately, which
+ * makes this a better fit than {@link TimerScheduler} for processes that keep very large numbers
+ * of intervals pending, such as session timeouts on a server. Each task keeps its entry on the
+ * wheel for its whole life, so rescheduling an interval does not allocate.
+ *
+ * <p>Deadlines are rounded up to the tick duration given on construction, so an interval may
+ * expire up to one tick late. The thread only wakes up once per tick while there are pending
+ * intervals, and not at all otherwise.</p>
+ */
+public class TimingWheelScheduler extends IntervalScheduler
+{
+    /**
+     * Creates a wheel with a tick of {@link #DEFAULT_TICK} milliseconds.
+     */
+    public TimingWheelScheduler ()
+    {
+        this(DEFAULT_TICK);
+    }
+
+    /**
+     * Creates a wheel with the given tick duration in milliseconds.
+     */
+    public TimingWheelScheduler (long tickMillis)
+    {
+        Preconditions.checkArgument(tickMillis > 0, "Tick must be positive");
+        _tickMillis = tickMillis;
+        _wheels = new Entry[LEVELS][SLOTS];
+        for (Entry[] wheel : _wheels) {
+            for (int ii = 0; ii < SLOTS; ii++) {
+                Entry head = new Entry();
+                head.prev = head.next = head;
+                wheel[ii] = head;
+            }
+        }
+        _start = System.nanoTime();
+        _startMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the number of intervals currently pending on the wheel.
+     */
+    public synchronized int size ()
+    {
+        return _size;
+    }
+
+    @Override
+    protected void schedule (Interval.IntervalTask task, long initialDelay, long repeatDelay,
+        boolean fixedRate)
+    {
+        synchronized (this) {
+            add(task, task.generation(), initialDelay, repeatDelay, fixedRate);
+        }
+    }
+
+    @Override
+    protected void scheduleAll (Interval.IntervalTask[] tasks, int[] generations,
+        long[] initialDelays, int count, long repeatDelay, boolean fixedRate)
+    {
+        synchronized (this) {
+            for (int ii = 0; ii < count; ii++) {
+                if (tasks[ii].generation() == generations[ii]) {
+                    add(tasks[ii], generations[ii], initialDelays[ii], repeatDelay, fixedRate);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void cancel (Interval.IntervalTask task)
+    {
+        Object handle = task._handle;
+        if (handle instanceof Entry) {
+            Entry entry = (Entry)handle;
+            synchronized (this) {
+                if (entry.next != null) {
+                    unlink(entry);
+                    _size--;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void shutdown ()
+    {
+        _shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Puts the given schedule of the task on the wheel. Must be called with the lock held.
+     */
+    protected void add (Interval.IntervalTask task, int generation, long initialDelay,
+        long repeatDelay, boolean fixedRate)
+    {
+        // the entry stays with the task for its whole life, so rescheduling does not allocate
+        Object handle = task._handle;
+        Entry entry;
+        if (handle instanceof Entry) {
+            entry = (Entry)handle;
+        } else {
+            entry = new Entry();
+            entry.task = task;
+            task._handle = entry;
+        }
+
+        if (_thread == null) {
+            _thread = new Thread("samson Interval Wheel") {
+                @Override public void run () {
+                    runLoop();
+                }
+            };
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+        if (entry.next != null) {
+            unlink(entry);
+            _size--;
+        }
+
+        entry.generation = generation;
+        entry.period = (repeatDelay == 0L) ? 0L : Math.max(1L, ticks(repeatDelay));
+        entry.fixedRate = fixedRate;
+
+        long now = elapsedTicks();
+        if (_size == 0) {
+            // nothing to catch up on, skip straight to the current tick
+            _tick = Math.max(_tick, now);
+            notifyAll();
+        }
+        entry.deadline = Math.max(_tick + 1, now + ticks(initialDelay));
+        place(entry, _tick);
+        _size++;
+    }
+
+    /**
+     * The body of the wheel thread. Advances the wheel in step with the clock and runs the tasks
+     * whose deadlines are reached, outside of the lock.
+     */
+    protected void runLoop ()
+    {
+        while (true) {
+            synchronized (this) {
+                while (true) {
+                    if (_shutdown) {
+                        return;
+                    }
+                    long now = elapsedTicks();
+                    while (_tick < now) {
+                        advance();
+                    }
+                    if (_expiredCount > 0) {
+                        break;
+                    }
+                    try {
+                        if (_size == 0) {
+                            wait();
+                        } else {
+                            long nanos = (_tick + 1) * _tickMillis * 1000000L -
+                                (System.nanoTime() - _start);
+                            if (nanos > 0) {
+                                wait(nanos / 1000000L, (int)(nanos % 1000000L));
+                            }
+                        }
+                    } catch (InterruptedException ie) {
+                        // keep going, we're a daemon
+                    }
+                }
+            }
+            fireExpired();
+        }
+    }
+
+    /**
+     * Fires the intervals collected by {@link #advance()}. Called on the wheel thread without the
+     * monitor held, so that the intervals can reschedule themselves.
+     */
+    protected void fireExpired ()
+    {
+        for (int ii = 0; ii < _expiredCount; ii++) {
+            try {
+                _expired[ii].fire(_expiredGenerations[ii],
+                    _startMillis + _expiredDeadlines[ii] * _tickMillis);
+            } catch (Throwable t) {
+                log.warning("Interval task failed on wheel thread", t);
+            }
+            _expired[ii] = null;
+        }
+        _expiredCount = 0;
+    }
+
+    /**
+     * Moves the wheel forward by one tick, cascading entries down from the outer wheels as their
+     * slots come due and collecting the tasks that expire on the new tick.
+     */
+    protected void advance ()
+    {
+        long tick = ++_tick;
+
+        // find the outermost wheel whose slot boundary we just crossed and cascade inward
+        int top = 0;
+        while (top + 1 < LEVELS && (tick & ((1L << (BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+        for (int level = top; level > 0; level--) {
+            Entry head = _wheels[level][(int)((tick >>> (BITS * level)) & MASK)];
+            Entry entry = head.next;
+            head.prev = head.next = head;
+            while (entry != head) {
+                Entry next = entry.next;
+                place(entry, tick);
+                entry = next;
+            }
+        }
+
+        Entry head = _wheels[0][(int)(tick & MASK)];
+        for (Entry entry = head.next; entry != head; ) {
+            Entry next = entry.next;
+            unlink(entry);
+            addExpired(entry);
+            if (entry.period == 0L) {
+                _size--;
+            } else {
+                long base = entry.fixedRate ? entry.deadline : Math.max(tick, elapsedTicks());
+                entry.deadline = base + entry.period;
+                place(entry, tick);
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     * Adds the task of the given entry to the list to be fired once the lock is released. The
+     * generation and deadline are captured now since the task may be rescheduled before it is
+     * fired.
+     */
+    protected void addExpired (Entry entry)
+    {
+        if (_expiredCount == _expired.length) {
+            _expired = Arrays.copyOf(_expired, _expiredCount * 2);
+            _expiredGenerations = Arrays.copyOf(_expiredGenerations, _expiredCount * 2);
+            _expiredDeadlines = Arrays.copyOf(_expiredDeadlines, _expiredCount * 2);
+        }
+        _expired[_expiredCount] = entry.task;
+        _expiredGenerations[_expiredCount] = entry.generation;
+        _expiredDeadlines[_expiredCount] = entry.deadline;
+        _expiredCount++;
+    }
+
+    /**
+     * Links the entry into the slot that will come due at its deadline, relative to the given
+     * reference tick.
+     */
+    protected void place (Entry entry, long reference)
+    {
+        long deadline = entry.deadline;
+        long delta = Math.max(0L, deadline - reference);
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        if (delta >= (1L << (BITS * LEVELS))) {
+            // beyond the range of the outermost wheel: park at its far end, it will be placed
+            // again when the slot cascades
+            deadline = reference + (1L << (BITS * LEVELS)) - 1;
+        }
+        Entry head = _wheels[level][(int)((deadline >>> (BITS * level)) & MASK)];
+        entry.prev = head.prev;
+        entry.next = head;
+        head.prev.next = entry;
+        head.prev = entry;
+    }
+
+    protected void unlink (Entry entry)
+    {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = entry.next = null;
+    }
+
+    /** Converts a delay in milliseconds to a number of ticks, rounding up. */
+    protected long ticks (long millis)
+    {
+        return (millis + _tickMillis - 1) / _tickMillis;
+    }
+
+    /** Returns the number of whole ticks elapsed since the wheel was created. */
+    protected long elapsedTicks ()
+    {
+        return (System.nanoTime() - _start) / (_tickMillis * 1000000L);
+    }
+
+    /**
+     * A node on the wheel. The slot heads are also entries, with no task.
+     */
+    protected static class Entry
+    {
+        /** The task this entry belongs to. */
+        public Interval.IntervalTask task;
+
+        /** The generation of the task's schedule. */
+        public int generation;
+
+        /** The tick at which the task is next due. */
+        public long deadline;
+
+        /** The number of ticks between runs, or 0 if the task does not repeat. */
+        public long period;
+
+        /** Whether repeats are measured from the deadline or from the actual run. */
+        public boolean fixedRate;
+
+        /** Links in the slot list, null if the entry is not on the wheel. */
+        public Entry prev, next;
+    }
+
+    /** The tick duration used by the default constructor. */
+    public static final long DEFAULT_TICK = 10L;
+
+    /** The number of bits of the tick count consumed by each wheel. */
+    protected static final int BITS = 6;
+
+    /** The number of slots in each wheel. */
+    protected static final int SLOTS = 1 << BITS;
+
+    /** Mask for the slot index within a wheel. */
+    protected static final long MASK = SLOTS - 1;
+
+    /** The number of nested wheels. Together they span 2^30 ticks before entries are parked. */
+    protected static final int LEVELS = 5;
+
+    /** The tick duration, in milliseconds. */
+    protected final long _tickMillis;
+
+    /** The slot list heads, by level and slot. */
+    protected final Entry[][] _wheels;
+
+    /** The System.nanoTime() value of tick zero. */
+    protected final long _start;
+
+    /** The System.currentTimeMillis() value of tick zero. */
+    protected final long _startMillis;
+
+    /** The last tick processed. */
+    protected long _tick;
+
+    /** The number of entries on the wheel. */
+    protected int _size;
+
+    /** Set by {@link #shutdown()} to stop the wheel thread. */
+    protected boolean _shutdown;
+
+    /** The wheel thread, started on first use. */
+    protected Thread _thread;
+
+    /** Tasks collected by {@link #advance()} to be fired by the wheel thread. */
+    protected Interval.IntervalTask[] _expired = new Interval.IntervalTask[16];
+
+    /** The generations to fire the tasks in {@link #_expired} with. */
+    protected int[] _expiredGenerations = new int[16];
+
+    /** The deadlines, in ticks, of the tasks in {@link #_expired}. */
+    protected long[] _expiredDeadlines = new long[16];
+
+    /** The number of collected tasks. */
+    protected int _expiredCount;
+}
@@ -0,0 +1,219 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * Schedules intervals against a virtual clock that only moves when {@link #advance(long)} is
+ * called. Advancing fires every expiration that falls due, synchronously on the calling thread and
+ * in deadline order, with {@link #currentTimeMillis()} set to each deadline as it fires. Intended
+ * for tests, simulations and benchmarks that need hours of interval activity to run in
+ * milliseconds. Intervals should be created with {@link Interval#RUN_DIRECT} (or another
+ * synchronous executor) for their {@code expired} methods to run during the advance.
+ *
+ * <pre>
+ * VirtualScheduler clock = new VirtualScheduler(0);
+ * Interval.setScheduler(clock);
+ * interval.schedule(24 * 60 * 60 * 1000L);
+ * clock.advance(24 * 60 * 60 * 1000L); // interval expires here
+ * </pre>
+ */
+public class VirtualScheduler extends IntervalScheduler
+{
+    /**
+     * Creates a scheduler whose clock starts at the current system time.
+     */
+    public VirtualScheduler ()
+    {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a scheduler whose clock starts at the given epoch milliseconds.
+     */
+    public VirtualScheduler (long now)
+    {
+        _now = now;
+    }
+
+    /**
+     * Returns the current virtual time.
+     */
+    @Override
+    public synchronized long currentTimeMillis ()
+    {
+        return _now;
+    }
+
+    /**
+     * Returns the number of intervals waiting to expire.
+     */
+    public synchronized int size ()
+    {
+        return _queue.size();
+    }
+
+    /**
+     * Returns the time of the next pending expiration, or {@code Long.MAX_VALUE} if there is none.
+     */
+    public synchronized long nextDeadline ()
+    {
+        return _queue.isEmpty() ? Long.MAX_VALUE : _queue.first().time;
+    }
+
+    /**
+     * Moves the clock forward by the given number of milliseconds, firing everything that comes
+     * due on the way. Returns the number of expirations fired.
+     */
+    public int advance (long millis)
+    {
+        return advanceTo(currentTimeMillis() + millis);
+    }
+
+    /**
+     * Moves the clock forward to the given time, firing everything that comes due on the way.
+     * Expirations scheduled by the intervals that fire are also fired if they come due before the
+     * target time. Returns the number of expirations fired.
+     */
+    public int advanceTo (long time)
+    {
+        int fired = 0;
+        while (true) {
+            Interval.IntervalTask task;
+            int generation;
+            long due;
+            synchronized (this) {
+                Entry entry = _queue.isEmpty() ? null : _queue.first();
+                if (entry == null || entry.time > time) {
+                    _now = Math.max(_now, time);
+                    return fired;
+                }
+                _queue.remove(entry);
+                _now = Math.max(_now, entry.time);
+                task = entry.task;
+                generation = entry.generation;
+                due = entry.time;
+                if (entry.period != 0L) {
+                    entry.time = (entry.fixedRate ? entry.time : _now) + entry.period;
+                    entry.seq = _seq++;
+                    _queue.add(entry);
+                }
+            }
+            task.fire(generation, due);
+            fired++;
+        }
+    }
+
+    /**
+     * Fires everything due at the current time, without moving the clock.
+     */
+    public int runDue ()
+    {
+        return advanceTo(currentTimeMillis());
+    }
+
+    @Override
+    protected void schedule (Interval.IntervalTask task, long initialDelay, long repeatDelay,
+        boolean fixedRate)
+    {
+        synchronized (this) {
+            add(task, task.generation(), initialDelay, repeatDelay, fixedRate);
+        }
+    }
+
+    @Override
+    protected void scheduleAll (Interval.IntervalTask[] tasks, int[] generations,
+        long[] initialDelays, int count, long repeatDelay, boolean fixedRate)
+    {
+        synchronized (this) {
+            for (int ii = 0; ii < count; ii++) {
+                if (tasks[ii].generation() == generations[ii]) {
+                    add(tasks[ii], generations[ii], initialDelays[ii], repeatDelay, fixedRate);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void cancel (Interval.IntervalTask task)
+    {
+        Object handle = task._handle;
+        if (handle instanceof Entry) {
+            synchronized (this) {
+                _queue.remove(handle);
+            }
+        }
+    }
+
+    /**
+     * Queues the given schedule of the task. Must be called with the lock held.
+     */
+    protected void add (Interval.IntervalTask task, int generation, long initialDelay,
+        long repeatDelay, boolean fixedRate)
+    {
+        Object handle = task._handle;
+        Entry entry;
+        if (handle instanceof Entry) {
+            entry = (Entry)handle;
+            _queue.remove(entry);
+        } else {
+            entry = new Entry();
+            entry.task = task;
+            task._handle = entry;
+        }
+        entry.generation = generation;
+        entry.time = _now + initialDelay;
+        entry.period = repeatDelay;
+        entry.fixedRate = fixedRate;
+        entry.seq = _seq++;
+        _queue.add(entry);
+    }
+
+    /**
+     * A pending expiration. Entries stay with their task and are reused by later schedules.
+     */
+    protected static class Entry
+    {
+        /** The task this entry belongs to. */
+        public Interval.IntervalTask task;
+
+        /** The generation of the task's schedule. */
+        public int generation;
+
+        /** The virtual time at which the task is next due. */
+        public long time;
+
+        /** The repeat delay, or 0. */
+        public long period;
+
+        /** Whether repeats are measured from the deadline or from the time fired. */
+        public boolean fixedRate;
+
+        /** Breaks ties between equal times, in order of scheduling. */
+        public long seq;
+    }
+
+    /** Orders entries by time, then by the order in which they were scheduled. */
+    protected static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override public int compare (Entry e1, Entry e2) {
+            if (e1.time != e2.time) {
+                return e1.time < e2.time ? -1 : 1;
+            }
+            return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+        }
+    };
+
+    /** The pending expirations. */
+    protected final TreeSet<Entry> _queue = new TreeSet<Entry>(ORDER);
+
+    /** The current virtual time. */
+    protected long _now;
+
+    /** The next tie breaker. */
+    protected long _seq;
+}
@@ -0,0 +1,151 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExecutorScheduler
+{
+    @Before
+    public void installScheduler () {
+        _pool.setRemoveOnCancelPolicy(true);
+        Interval.setScheduler(_scheduler);
+    }
+
+    @After
+    public void restoreScheduler () {
+        Interval.setScheduler(_original);
+        _pool.shutdownNow();
+    }
+
+    @Test
+    public void testFires () throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        Interval ival = record(latch, threads);
+        ival.schedule(20);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, threads.size());
+        Assert.assertEquals("pool", threads.get(0).getName());
+        Assert.assertEquals(0, _pool.getQueue().size());
+    }
+
+    @Test
+    public void testSuperseded () throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        Interval ival = record(latch, threads);
+        ival.schedule(20);
+        ExecutorScheduler.Firing first = (ExecutorScheduler.Firing)ival._task._handle;
+        int generation = first.generation;
+        ival.schedule(200);
+
+        // the first schedule's runnable is cancelled and dropped from the queue
+        Assert.assertNull(first.task);
+        Assert.assertTrue(first.future.isCancelled());
+        Assert.assertEquals(1, _pool.getQueue().size());
+
+        // and a runnable for it that the service already dequeued does not fire the interval
+        new ExecutorScheduler.Firing(ival._task, generation).run();
+        Thread.sleep(100);
+        Assert.assertEquals(0, threads.size());
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        Assert.assertEquals(1, threads.size());
+    }
+
+    @Test
+    public void testCancel () throws Exception {
+        // without remove-on-cancel the runnable stays queued until its deadline, but does nothing
+        _pool.setRemoveOnCancelPolicy(false);
+        List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        Interval ival = record(new CountDownLatch(1), threads);
+        ival.schedule(50);
+        ExecutorScheduler.Firing firing = (ExecutorScheduler.Firing)ival._task._handle;
+        ival.cancel();
+        Assert.assertNull(firing.task);
+        Assert.assertTrue(firing.future.isCancelled());
+        Assert.assertEquals(1, _pool.getQueue().size());
+
+        firing.run();
+        Thread.sleep(150);
+        Assert.assertEquals(0, threads.size());
+
+        // until purged
+        _scheduler.purge();
+        Assert.assertEquals(0, _pool.getQueue().size());
+    }
+
+    @Test
+    public void testRepeats () throws Exception {
+        // each run takes 30 of every 40ms; fixed rate keeps the 40ms beat, fixed delay waits 40ms
+        // after each run ends
+        final long[] rate = new long[5], delay = new long[5];
+        final CountDownLatch latch = new CountDownLatch(2);
+        Interval rateIval = sleeper(rate, latch);
+        Interval delayIval = sleeper(delay, latch);
+        rateIval.schedule(0, 40, true);
+        delayIval.schedule(0, 40, false);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        rateIval.cancel();
+        delayIval.cancel();
+
+        for (int ii = 1; ii < delay.length; ii++) {
+            Assert.assertTrue("gap " + ii, delay[ii] - delay[ii - 1] >= 70);
+        }
+        Assert.assertTrue(rate[4] - rate[0] < delay[4] - delay[0]);
+    }
+
+    private static Interval record (final CountDownLatch latch, final List<Thread> threads) {
+        return new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                threads.add(Thread.currentThread());
+                latch.countDown();
+            }
+        };
+    }
+
+    private static Interval sleeper (final long[] starts, final CountDownLatch latch) {
+        return new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                if (_count < starts.length) {
+                    starts[_count] = System.nanoTime() / 1000000L;
+                    if (++_count == starts.length) {
+                        latch.countDown();
+                    }
+                }
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            protected int _count;
+        };
+    }
+
+    private final ScheduledThreadPoolExecutor _pool = new ScheduledThreadPoolExecutor(2,
+        new ThreadFactory() {
+            public Thread newThread (Runnable runnable) {
+                Thread thread = new Thread(runnable, "pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    private final ExecutorScheduler _scheduler = new ExecutorScheduler(_pool);
+    private final IntervalScheduler _original = Interval.scheduler();
+}
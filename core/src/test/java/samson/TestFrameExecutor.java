@@ -0,0 +1,127 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import samson.FrameExecutor.Lane;
+
+public class TestFrameExecutor
+{
+    @Test
+    public void testLanes () {
+        FrameExecutor frames = new FrameExecutor(_frameExec, 1000);
+        for (Lane lane : Lane.values()) {
+            frames.setQuota(lane, Integer.MAX_VALUE);
+        }
+        frames.lane(Lane.BACKGROUND).execute(record("b"));
+        frames.execute(record("n"));
+        frames.lane(Lane.CRITICAL).execute(record("c"));
+        frames.execute(Lane.BACKGROUND, record("b"));
+        frames.execute(Lane.CRITICAL, record("c"));
+
+        // highest priority first, in order of queueing within a lane
+        Assert.assertEquals(1, _frames.size());
+        _frames.remove(0).run();
+        Assert.assertEquals("ccnbb", Joiner.on("").join(_ran));
+        Assert.assertEquals(0, _frames.size());
+    }
+
+    @Test
+    public void testQuotas () {
+        FrameExecutor frames = new FrameExecutor(_frameExec, 1000);
+        for (int ii = 0; ii < 5; ii++) {
+            frames.execute(Lane.BACKGROUND, record("b"));
+            frames.execute(Lane.NORMAL, record("n"));
+        }
+        frames.setQuota(Lane.NORMAL, 2);
+        frames.execute(Lane.CRITICAL, record("c"));
+        frames.execute(Lane.CRITICAL, record("c"));
+        Assert.assertEquals(5, frames.backlog(Lane.BACKGROUND));
+        Assert.assertEquals(2, frames.backlog(Lane.CRITICAL));
+        Assert.assertEquals(12, frames.backlog());
+
+        // a single pass, posted once
+        Assert.assertEquals(1, _frames.size());
+        _frames.remove(0).run();
+        Assert.assertEquals("ccnnbbnnbbnb", Joiner.on("").join(_ran));
+        Assert.assertEquals(0, frames.backlog());
+        Assert.assertEquals(0, _frames.size());
+        Assert.assertEquals(5, frames.waits(Lane.BACKGROUND).count());
+
+        // enough to grow the lane's queue times
+        for (int ii = 0; ii < 40; ii++) {
+            frames.execute(Lane.BACKGROUND, record("b"));
+        }
+        _frames.remove(0).run();
+        Assert.assertEquals(52, _ran.size());
+        Assert.assertEquals(45, frames.waits(Lane.BACKGROUND).count());
+    }
+
+    @Test
+    public void testCriticalFlood () {
+        final FrameExecutor frames = new FrameExecutor(_frameExec, 1000);
+        frames.execute(record("n"));
+        frames.execute(Lane.CRITICAL, new Runnable() {
+            public void run () {
+                _ran.add("c");
+                // keep the critical lane full
+                if (_ran.size() < 100) {
+                    frames.execute(Lane.CRITICAL, this);
+                }
+            }
+        });
+        _frames.remove(0).run();
+        int quota = frames.quota(Lane.CRITICAL);
+        Assert.assertTrue(quota < Integer.MAX_VALUE);
+        Assert.assertEquals(quota, _ran.indexOf("n"));
+    }
+
+    @Test
+    public void testBudget () {
+        FrameExecutor frames = new FrameExecutor(_frameExec, 1);
+        for (int ii = 0; ii < 3; ii++) {
+            frames.execute(new Runnable() {
+                public void run () {
+                    // overrun the budget
+                    long start = System.nanoTime();
+                    while (System.nanoTime() - start < 2000000L) {}
+                    _ran.add("x");
+                }
+            });
+        }
+        // one task per pass, the rest carried over to the next pass
+        for (int ii = 1; ii <= 3; ii++) {
+            Assert.assertEquals(1, _frames.size());
+            _frames.remove(0).run();
+            Assert.assertEquals(ii, _ran.size());
+        }
+        Assert.assertEquals(0, _frames.size());
+    }
+
+    private Runnable record (final String name) {
+        return new Runnable() {
+            public void run () {
+                _ran.add(name);
+            }
+        };
+    }
+
+    private final List<String> _ran = Lists.newArrayList();
+    private final List<Runnable> _frames = Lists.newArrayList();
+    private final Executor _frameExec = new Executor() {
+        public void execute (Runnable runnable) {
+            _frames.add(runnable);
+        }
+    };
+}
@@ -0,0 +1,867 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import react.RFuture;
+import react.RPromise;
+import react.Slot;
+import react.Try;
+
+import samson.text.DateTimeFormat;
+
+public class TestInterval
+{
+    @After
+    public void restoreScheduler () {
+        Interval.setScheduler(_original);
+    }
+
+    @Test
+    public void testVirtualOrder () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        List<String> fired = Lists.newArrayList();
+        record(fired, "c").schedule(300);
+        record(fired, "a").schedule(100);
+        record(fired, "b").schedule(200);
+        record(fired, "b2").schedule(200);
+
+        Assert.assertEquals(1, clock.advance(150));
+        Assert.assertEquals(Lists.newArrayList("a@100"), fired);
+        Assert.assertEquals(3, clock.advance(1000));
+        Assert.assertEquals(Lists.newArrayList("a@100", "b@200", "b2@200", "c@300"), fired);
+        Assert.assertEquals(1150, clock.currentTimeMillis());
+        Assert.assertEquals(0, clock.size());
+    }
+
+    @Test
+    public void testVirtualSupersede () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        List<String> fired = Lists.newArrayList();
+        Interval ival = record(fired, "x");
+        ival.schedule(100);
+        ival.schedule(500);
+        Interval cancelled = record(fired, "y");
+        cancelled.schedule(200);
+        cancelled.cancel();
+
+        clock.advance(1000);
+        Assert.assertEquals(Lists.newArrayList("x@500"), fired);
+    }
+
+    @Test
+    public void testVirtualRepeat () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        List<String> fired = Lists.newArrayList();
+        Interval ival = record(fired, "r");
+        ival.schedule(DAY, true);
+
+        // a week of daily expirations without waiting
+        Assert.assertEquals(7, clock.advance(7 * DAY));
+        Assert.assertEquals("r@" + 7 * DAY, fired.get(6));
+        ival.cancel();
+        Assert.assertEquals(0, clock.advance(7 * DAY));
+    }
+
+    @Test
+    public void testGroupCancelAll () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        List<String> fired = Lists.newArrayList();
+        IntervalGroup group = new IntervalGroup();
+        for (String name : new String[] { "a", "b", "c" }) {
+            group.add(record(fired, name));
+        }
+        group.schedule(100);
+        Assert.assertEquals(3, clock.size());
+        clock.advance(100);
+        Assert.assertEquals(Lists.newArrayList("a@100", "b@100", "c@100"), fired);
+
+        fired.clear();
+        group.schedule(100, 100, true);
+        Interval loner = record(fired, "x");
+        loner.schedule(150);
+        group.cancelAll();
+        clock.advance(1000);
+        Assert.assertEquals(Lists.newArrayList("x@250"), fired);
+        Assert.assertEquals(0, clock.size());
+
+        // the group is reusable after a cancel
+        group.schedule(10);
+        clock.advance(10);
+        Assert.assertEquals(4, fired.size());
+    }
+
+    @Test
+    public void testGroupSupersede () {
+        final Interval[] racer = new Interval[1];
+        VirtualScheduler clock = new VirtualScheduler(0) {
+            @Override protected void scheduleAll (Interval.IntervalTask[] tasks,
+                    int[] generations, long[] initialDelays, int count, long repeatDelay,
+                    boolean fixedRate) {
+                // another thread reschedules a member after the group has prepared it
+                racer[0].schedule(400);
+                super.scheduleAll(tasks, generations, initialDelays, count, repeatDelay,
+                    fixedRate);
+            }
+        };
+        Interval.setScheduler(clock);
+        List<String> fired = Lists.newArrayList();
+        IntervalGroup group = new IntervalGroup();
+        Interval a = record(fired, "a"), b = record(fired, "b"), c = record(fired, "c");
+        Interval d = record(fired, "d"), e = record(fired, "e");
+        for (Interval ival : Lists.newArrayList(a, b, c, d, e)) {
+            group.add(ival);
+        }
+        racer[0] = e;
+        group.schedule(100);
+        Assert.assertEquals(5, clock.size());
+
+        // members superseded individually after the batch
+        b.schedule(50);
+        c.schedule(300);
+        d.cancel();
+
+        clock.advance(1000);
+        Assert.assertEquals(Lists.newArrayList("b@50", "a@100", "c@300", "e@400"), fired);
+        Assert.assertEquals(0, clock.size());
+    }
+
+    @Test
+    public void testGroupRemove () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        List<String> fired = Lists.newArrayList();
+        IntervalGroup group = new IntervalGroup();
+        Interval a = record(fired, "a"), b = record(fired, "b"), c = record(fired, "c");
+        group.add(a);
+        group.add(b);
+        group.add(c);
+        group.schedule(100);
+
+        // a leaves with its schedule, which the group no longer cancels
+        group.remove(a);
+        Assert.assertNull(a.group());
+        Assert.assertEquals(2, group.size());
+
+        // b and c were cancelled by the group before leaving it, and stay cancelled
+        group.cancelAll();
+        group.remove(b);
+        group.remove(c);
+        clock.advance(1000);
+        Assert.assertEquals(Lists.newArrayList("a@100"), fired);
+        Assert.assertEquals(0, clock.size());
+    }
+
+    @Test
+    public void testCatchUp () {
+        Assert.assertEquals(Lists.newArrayList("0@100", "0@200", "0@300", "0@400", "0@850",
+            "0@850", "0@850", "0@850", "0@900"), stall(Interval.CatchUp.FIRE_ALL));
+        Assert.assertEquals(Lists.newArrayList("0@100", "0@200", "0@300", "0@400", "3@850",
+            "0@900"), stall(Interval.CatchUp.COALESCE));
+        Assert.assertEquals(Lists.newArrayList("0@100", "0@200", "0@300", "0@400", "0@850",
+            "0@900"), stall(Interval.CatchUp.SKIP));
+    }
+
+    @Test
+    public void testCatchUpClocks () {
+        // the missed runs are counted by the clock of the shard that fires the interval
+        VirtualScheduler first = new VirtualScheduler(0), second = new VirtualScheduler(0);
+        ShardedScheduler sharded = new ShardedScheduler(
+            ShardedScheduler.ShardBy.INTERVAL, first, second);
+        Interval.setScheduler(sharded);
+        final List<Integer> missed = Lists.newArrayList();
+        Interval ival;
+        do {
+            ival = new Interval(Interval.RUN_DIRECT) {
+                @Override public void expired () {}
+                @Override public void expired (int count) {
+                    missed.add(count);
+                }
+            };
+        } while (sharded.shard(ival._task) != second);
+        ival.setCatchUp(Interval.CatchUp.COALESCE);
+        ival.schedule(100, 100, true);
+        second.advance(400);
+        second._now += 450;
+        second.advance(50);
+        Assert.assertEquals(Lists.newArrayList(0, 0, 0, 0, 3, 0), missed);
+        ival.cancel();
+
+        // periods are those the scheduler keeps: whole milliseconds here
+        Interval.setScheduler(second);
+        missed.clear();
+        ival.scheduleNanos(1500000L, 1500000L, true);
+        second._now += 9;
+        second.advance(1);
+        Assert.assertEquals(Lists.newArrayList(3, 0), missed);
+        ival.cancel();
+
+        // but too fine to count for a scheduler that keeps them
+        Interval.setScheduler(new PreciseScheduler());
+        try {
+            ival.scheduleNanos(0L, 500000L, true);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        ival.setCatchUp(Interval.CatchUp.FIRE_ALL);
+        ival.scheduleNanos(500000L, 500000L, true);
+        ival.cancel();
+    }
+
+    @Test
+    public void testInFlightSuppression () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        final List<Runnable> queue = Lists.newArrayList();
+        final List<Integer> missed = Lists.newArrayList();
+        Interval ival = new Interval(new Executor() {
+            @Override public void execute (Runnable runnable) {
+                queue.add(runnable);
+            }
+        }) {
+            @Override public void expired () {}
+            @Override public void expired (int count) {
+                missed.add(count);
+            }
+        };
+        ival.schedule(100, 100, true);
+
+        // the run queue is stalled for five ticks, but holds the interval only once
+        clock.advance(500);
+        Assert.assertEquals(1, queue.size());
+        queue.remove(0).run();
+        Assert.assertEquals(Lists.newArrayList(4), missed);
+
+        clock.advance(100);
+        Assert.assertEquals(1, queue.size());
+        queue.remove(0).run();
+        Assert.assertEquals(Lists.newArrayList(4, 0), missed);
+        ival.cancel();
+    }
+
+    @Test
+    public void testDiscardedRunner () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        final List<Runnable> lost = Lists.newArrayList();
+        final boolean[] discard = { true };
+        List<String> fired = Lists.newArrayList();
+        Interval ival = record(fired, "x", new Executor() {
+            @Override public void execute (Runnable runnable) {
+                if (discard[0]) {
+                    lost.add(runnable); // as a DiscardPolicy pool would, without running it
+                } else {
+                    runnable.run();
+                }
+            }
+        });
+        ival.schedule(10, 10, true);
+        clock.advance(30);
+        Assert.assertEquals(1, lost.size());
+
+        // a new schedule posts afresh rather than folding into the post that was lost
+        discard[0] = false;
+        ival.schedule(50);
+        clock.advance(50);
+        Assert.assertEquals(Lists.newArrayList("x@80"), fired);
+
+        // and the lost post does nothing if it turns up after all
+        lost.remove(0).run();
+        ival.schedule(10);
+        clock.advance(10);
+        Assert.assertEquals(Lists.newArrayList("x@80", "x@90"), fired);
+    }
+
+    @Test
+    public void testBatchedDispatch () {
+        VirtualScheduler first = new VirtualScheduler(0), second = new VirtualScheduler(0);
+        QueueExecutor a = new QueueExecutor(), b = new QueueExecutor();
+        List<String> fired = Lists.newArrayList();
+        Interval.setBatchedDispatch(true);
+        try {
+            Interval.setScheduler(first);
+            record(fired, "a100", a).schedule(100);
+            record(fired, "b100", b).schedule(100);
+            record(fired, "a100b", a).schedule(100);
+            record(fired, "a50", a).schedule(50);
+            record(fired, "b100b", b).schedule(100);
+            // a deadline that reaches the batch after later ones, from another scheduler
+            Interval.setScheduler(second);
+            record(fired, "a30", a).schedule(30);
+
+            first.advance(100);
+            second.advance(30);
+            Assert.assertEquals(1, a.executes);
+            Assert.assertEquals(1, b.executes);
+            Assert.assertEquals(0, fired.size());
+
+            // each batch runs in deadline order, and in firing order for equal deadlines
+            a.runAll();
+            b.runAll();
+            Assert.assertEquals(Lists.newArrayList("a30@30", "a50@30", "a100@30", "a100b@30",
+                "b100@30", "b100b@30"), fired);
+        } finally {
+            Interval.setBatchedDispatch(false);
+        }
+    }
+
+    @Test
+    public void testBatchedDispatchLost () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        QueueExecutor exec = new QueueExecutor();
+        List<String> fired = Lists.newArrayList();
+        Interval.setBatchedDispatch(true);
+        try {
+            // a batch the executor rejects is dropped, and its members post again next time
+            Interval x = record(fired, "x", exec), y = record(fired, "y", exec);
+            exec.reject = true;
+            x.schedule(10);
+            clock.advance(10);
+            exec.reject = false;
+            x.schedule(10);
+            clock.advance(10);
+            exec.runAll();
+            Assert.assertEquals(Lists.newArrayList("x@20"), fired);
+
+            // a batch the executor loses holds its members until they are rescheduled
+            x.schedule(10);
+            y.schedule(10);
+            clock.advance(10);
+            Assert.assertEquals(1, exec.queue.size());
+            Runnable lost = exec.queue.remove(0);
+            x.schedule(10);
+            clock.advance(10);
+            Assert.assertEquals(1, exec.queue.size());
+            exec.runAll();
+            Assert.assertEquals(Lists.newArrayList("x@20", "y@40", "x@40"), fired);
+
+            // and does nothing if it turns up after all
+            lost.run();
+            Assert.assertEquals(3, fired.size());
+            x.schedule(10);
+            clock.advance(10);
+            exec.runAll();
+            Assert.assertEquals(Lists.newArrayList("x@20", "y@40", "x@40", "x@50"), fired);
+        } finally {
+            Interval.setBatchedDispatch(false);
+        }
+    }
+
+    @Test
+    public void testPauseAll () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        List<String> fired = Lists.newArrayList();
+        Interval ival = missed(fired);
+        ival.setCatchUp(Interval.CatchUp.COALESCE);
+        ival.schedule(100, 100, true);
+        Interval once = missed(fired);
+        once.schedule(250);
+
+        Interval.pauseAll();
+        try {
+            Assert.assertTrue(Interval.isPaused());
+            clock.advance(1000);
+            Assert.assertEquals(0, fired.size());
+        } finally {
+            Interval.resumeAll();
+        }
+        Assert.assertEquals(Lists.newArrayList("9@1000", "0@1000"), fired);
+        ival.cancel();
+    }
+
+    @Test
+    public void testDebouncer () {
+        final VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        final List<Long> ran = Lists.newArrayList();
+        Debouncer debouncer = new Debouncer(Interval.RUN_DIRECT, 100, new Runnable() {
+            public void run () {
+                ran.add(clock.currentTimeMillis());
+            }
+        });
+        debouncer.trigger();
+        clock.advance(50);
+        debouncer.trigger();
+        clock.advance(40);
+        debouncer.trigger();
+        clock.advance(500);
+        Assert.assertEquals(Lists.newArrayList(190L), ran);
+        Assert.assertFalse(debouncer.isPending());
+    }
+
+    @Test
+    public void testThrottler () {
+        final VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        final List<Long> ran = Lists.newArrayList();
+        Throttler throttler = new Throttler(Interval.RUN_DIRECT, 100, new Runnable() {
+            public void run () {
+                ran.add(clock.currentTimeMillis());
+            }
+        });
+        throttler.trigger();
+        clock.runDue();
+        for (int ii = 0; ii < 5; ii++) {
+            clock.advance(10);
+            throttler.trigger();
+        }
+        clock.advance(200);
+        clock.advance(50);
+        throttler.trigger();
+        clock.runDue();
+        Assert.assertEquals(Lists.newArrayList(0L, 100L, 300L), ran);
+    }
+
+    @Test
+    public void testCalendarSchedule () {
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        GregorianCalendar cal = new GregorianCalendar(zone);
+        cal.clear();
+        cal.set(2014, Calendar.MARCH, 8, 12, 0); // the day before the clocks go forward
+        final VirtualScheduler clock = new VirtualScheduler(cal.getTimeInMillis());
+        Interval.setScheduler(clock);
+
+        CalendarSchedule calendar = new CalendarSchedule(localFormat(zone), Interval.RUN_DIRECT);
+        final List<Long> midnights = Lists.newArrayList();
+        List<CalendarSchedule.Subscription> subs = Lists.newArrayList();
+        for (int ii = 0; ii < 1000; ii++) {
+            subs.add(calendar.daily(0, 0, new Runnable() {
+                public void run () {
+                    midnights.add(clock.currentTimeMillis());
+                }
+            }));
+        }
+        subs.add(calendar.daily(6, 30, new Runnable() {
+            public void run () {}
+        }));
+        Assert.assertEquals(2, calendar.boundaryCount());
+        Assert.assertEquals(2, clock.size());
+
+        clock.advance(2 * DAY);
+        Assert.assertEquals(2000, midnights.size());
+        // the second day is only 23 hours long
+        Assert.assertEquals(23 * 60 * 60 * 1000L, midnights.get(1000) - midnights.get(0));
+        for (long midnight : midnights) {
+            cal.setTimeInMillis(midnight);
+            Assert.assertEquals(0, cal.get(Calendar.HOUR_OF_DAY));
+            Assert.assertEquals(0, cal.get(Calendar.MINUTE));
+        }
+
+        for (CalendarSchedule.Subscription sub : subs) {
+            sub.cancel();
+        }
+        Assert.assertEquals(0, calendar.boundaryCount());
+        Assert.assertEquals(0, clock.size());
+    }
+
+    @Test
+    public void testFutures () {
+        final VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        Executor direct = Interval.RUN_DIRECT;
+
+        IntervalFuture<Void> delay = IntervalFuture.delay(100, direct);
+        clock.advance(99);
+        Assert.assertFalse(delay.isComplete().get());
+        clock.advance(1);
+        Assert.assertTrue(delay.isComplete().get());
+
+        // a timeout whose source completes in time leaves nothing scheduled
+        RPromise<String> source = RPromise.create();
+        IntervalFuture<String> timely = IntervalFuture.timeout(source, 100, direct);
+        source.succeed("done");
+        Assert.assertEquals(0, clock.size());
+        Assert.assertFalse(source.hasConnections());
+        final List<Object> results = Lists.newArrayList();
+        timely.onComplete(new Slot<Try<String>>() {
+            @Override public void onEmit (Try<String> result) {
+                results.add(result.get());
+            }
+        });
+        RPromise<String> never = RPromise.create();
+        IntervalFuture<String> late = IntervalFuture.timeout(never, 100, direct);
+        late.onFailure(new Slot<Throwable>() {
+            @Override public void onEmit (Throwable cause) {
+                results.add(cause.getClass());
+            }
+        });
+        clock.advance(100);
+        Assert.assertEquals(Lists.<Object>newArrayList("done", TimeoutException.class), results);
+        Assert.assertFalse(never.hasConnections());
+
+        // two failures, with backoffs of 10 and 20ms, then success
+        final List<Long> attempts = Lists.newArrayList();
+        IntervalFuture<String> retried = IntervalFuture.retry(new Callable<RFuture<String>>() {
+            public RFuture<String> call () {
+                attempts.add(clock.currentTimeMillis());
+                return attempts.size() < 3 ? RFuture.<String>failure(new Exception()) :
+                    RFuture.success("third");
+            }
+        }, 5, 10, direct);
+        clock.advance(1000);
+        Assert.assertEquals(Lists.newArrayList(200L, 210L, 230L), attempts);
+        retried.onSuccess(new Slot<String>() {
+            @Override public void onEmit (String value) {
+                results.add(value);
+            }
+        });
+        Assert.assertEquals("third", results.get(2));
+
+        // backoffs are capped, even when they would overflow
+        attempts.clear();
+        final long max = IntervalFuture.MAX_BACKOFF_MILLIS;
+        IntervalFuture<String> capped = IntervalFuture.retry(new Callable<RFuture<String>>() {
+            public RFuture<String> call () {
+                attempts.add(clock.currentTimeMillis());
+                return RFuture.<String>failure(new Exception());
+            }
+        }, 4, max - 1, direct);
+        clock.advance(4 * max);
+        long start = attempts.get(0);
+        Assert.assertEquals(Lists.newArrayList(start, start + max - 1, start + 2 * max - 1,
+            start + 3 * max - 1), attempts);
+        Assert.assertTrue(capped.isDone());
+
+        // cancelling between attempts stops the retries
+        attempts.clear();
+        IntervalFuture<String> stopped = IntervalFuture.retry(new Callable<RFuture<String>>() {
+            public RFuture<String> call () {
+                attempts.add(clock.currentTimeMillis());
+                return RFuture.<String>failure(new Exception());
+            }
+        }, 5, Long.MAX_VALUE / 2, direct);
+        Assert.assertEquals(1, clock.size());
+        Assert.assertTrue(stopped.cancel());
+        Assert.assertEquals(0, clock.size());
+        Assert.assertEquals(1, attempts.size());
+
+        IntervalFuture<Void> cancelled = IntervalFuture.delay(100, direct);
+        Assert.assertTrue(cancelled.cancel());
+        Assert.assertFalse(cancelled.cancel());
+        Assert.assertEquals(0, clock.size());
+    }
+
+    @Test
+    public void testWatchdog () throws InterruptedException {
+        IntervalWatchdog.reset();
+        IntervalWatchdog.setThreshold(20);
+        try {
+            Interval slow = new Interval(Interval.RUN_DIRECT) {
+                @Override public void expired () {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ie) {
+                        throw new RuntimeException(ie);
+                    }
+                }
+            };
+            Interval fast = new Interval(Interval.RUN_DIRECT) {
+                @Override public void expired () {}
+            };
+            VirtualScheduler clock = new VirtualScheduler(0);
+            Interval.setScheduler(clock);
+            slow.schedule(100);
+            fast.schedule(100);
+            clock.advance(100);
+
+            List<IntervalWatchdog.Stall> worst = IntervalWatchdog.worst();
+            Assert.assertEquals(1, worst.size());
+            IntervalWatchdog.Stall stall = worst.get(0);
+            Assert.assertEquals(slow.getClass().getName(), stall.intervalClassName);
+            Assert.assertTrue(stall.millis >= 200);
+            Assert.assertNotNull(stall.stack);
+            boolean inExpired = false;
+            for (StackTraceElement elem : stall.stack) {
+                inExpired |= elem.getClassName().equals(stall.intervalClassName) &&
+                    elem.getMethodName().equals("expired");
+            }
+            Assert.assertTrue(inExpired);
+
+            // an expiration run from inside another is watched separately
+            IntervalWatchdog.reset();
+            final VirtualScheduler inner = new VirtualScheduler(0);
+            Interval outer = new Interval(Interval.RUN_DIRECT) {
+                @Override public void expired () {
+                    sleep(50);
+                    inner.advance(100);
+                }
+            };
+            Interval.setScheduler(inner);
+            Interval nested = new Interval(Interval.RUN_DIRECT) {
+                @Override public void expired () {
+                    sleep(30);
+                }
+            };
+            nested.schedule(100);
+            Interval.setScheduler(clock);
+            outer.schedule(100);
+            clock.advance(100);
+
+            worst = IntervalWatchdog.worst();
+            Assert.assertEquals(2, worst.size());
+            Assert.assertEquals(outer.getClass().getName(), worst.get(0).intervalClassName);
+            Assert.assertTrue(worst.get(0).millis >= 80);
+            Assert.assertEquals(nested.getClass().getName(), worst.get(1).intervalClassName);
+        } finally {
+            IntervalWatchdog.setThreshold(0);
+            IntervalWatchdog.reset();
+        }
+    }
+
+    @Test
+    public void testToleranceCoalescesWakeups () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        IntervalStats.reset();
+        IntervalStats.setEnabled(true);
+        try {
+            List<String> fired = Lists.newArrayList();
+            for (int delay : new int[] { 1, 30, 60, 70 }) {
+                Interval ival = record(fired, "d" + delay);
+                ival.setTolerance(100);
+                ival.schedule(delay);
+            }
+            clock.advance(1000);
+            Assert.assertEquals(
+                Lists.newArrayList("d1@64", "d30@64", "d60@64", "d70@128"), fired);
+            Assert.assertEquals(4, IntervalStats.expirations());
+            Assert.assertEquals(2, IntervalStats.wakeups());
+        } finally {
+            IntervalStats.setEnabled(false);
+            IntervalStats.reset();
+        }
+    }
+
+    @Test
+    public void testStatsThreadsAndReset () {
+        final VirtualScheduler first = new VirtualScheduler(0), second = new VirtualScheduler(0);
+        IntervalStats.reset();
+        IntervalStats.setEnabled(true);
+        try {
+            // another scheduler thread fires a different deadline in the middle of our pass
+            final List<String> fired = Lists.newArrayList();
+            Interval.setScheduler(first);
+            Interval interloper = new Interval(Interval.RUN_DIRECT) {
+                @Override public void expired () {
+                    Thread other = new Thread() {
+                        @Override public void run () {
+                            second.advance(200);
+                        }
+                    };
+                    other.start();
+                    join(other);
+                }
+            };
+            interloper.schedule(100);
+            record(fired, "a").schedule(100);
+            Interval.setScheduler(second);
+            record(fired, "b").schedule(200);
+            Interval.setScheduler(first);
+
+            first.advance(100);
+            Assert.assertEquals(Lists.newArrayList("b@100", "a@100"), fired);
+            Assert.assertEquals(3, IntervalStats.expirations());
+            Assert.assertEquals(2, IntervalStats.wakeups());
+
+            // a reset starts the counts over, and does not count intervals scheduled before it
+            Interval live = record(fired, "c");
+            live.schedule(100);
+            String name = live._task._intervalClassName;
+            Assert.assertEquals(1, IntervalStats.forClass(name).live());
+            IntervalStats.reset();
+            live.cancel();
+            Assert.assertEquals(0, IntervalStats.forClass(name).live());
+            Assert.assertEquals(0, IntervalStats.forClass(name).cancelled());
+
+            live.schedule(0);
+            first.advance(0);
+            Assert.assertEquals(1, IntervalStats.wakeups());
+            Assert.assertEquals(0, IntervalStats.forClass(name).live());
+        } finally {
+            IntervalStats.setEnabled(false);
+            IntervalStats.reset();
+        }
+    }
+
+    @Test
+    public void testShutdown () {
+        TimingWheelScheduler wheel = new TimingWheelScheduler(1);
+        PreciseScheduler precise = new PreciseScheduler();
+        List<String> fired = Lists.newArrayList();
+        for (IntervalScheduler scheduler : new IntervalScheduler[] { wheel, precise }) {
+            Interval.setScheduler(scheduler);
+            record(fired, "x").schedule(20);
+        }
+        Interval.setScheduler(_original);
+        wheel.shutdown();
+        precise.shutdown();
+        for (Thread thread : new Thread[] { wheel._thread, precise._thread }) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+            Assert.assertFalse(thread.getName(), thread.isAlive());
+        }
+        sleep(50);
+        Assert.assertEquals(0, fired.size());
+    }
+
+    @Test
+    public void testRescheduleDoesNotAllocate () {
+        Interval.setScheduler(new TimingWheelScheduler());
+        Interval ival = new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {}
+        };
+
+        // warm up: starts the wheel thread and creates the interval's wheel entry
+        churn(ival, 20000);
+
+        long before = allocatedBytes();
+        churn(ival, 100000);
+        long allocated = allocatedBytes() - before;
+
+        // a single allocation per reschedule would be well over a megabyte
+        Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    private static Interval record (final List<String> fired, final String name) {
+        return record(fired, name, Interval.RUN_DIRECT);
+    }
+
+    private static Interval record (final List<String> fired, final String name, Executor exec) {
+        return new Interval(exec) {
+            @Override public void expired () {
+                fired.add(name + "@" + Interval.currentTimeMillis());
+            }
+        };
+    }
+
+    private static Interval missed (final List<String> fired) {
+        return new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                Assert.fail();
+            }
+            @Override public void expired (int missed) {
+                fired.add(missed + "@" + Interval.currentTimeMillis());
+            }
+        };
+    }
+
+    private static void sleep (long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        }
+    }
+
+    private static void join (Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+        }
+    }
+
+    /** Runs a 100ms interval with the given policy, stalling the clock 450ms after 400. */
+    private static List<String> stall (Interval.CatchUp catchUp) {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        List<String> fired = Lists.newArrayList();
+        Interval ival = missed(fired);
+        ival.setCatchUp(catchUp);
+        ival.schedule(100, 100, true);
+        clock.advance(400);
+        clock._now += 450;
+        clock.advance(50);
+        ival.cancel();
+        return fired;
+    }
+
+    /** Returns a format that only does local time, in the given zone. */
+    private static DateTimeFormat localFormat (final TimeZone zone) {
+        return (DateTimeFormat)Proxy.newProxyInstance(TestInterval.class.getClassLoader(),
+            new Class<?>[] { DateTimeFormat.class }, new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    Assert.assertEquals("toLocal", method.getName());
+                    GregorianCalendar cal = new GregorianCalendar(zone);
+                    cal.setTime((Date)args[0]);
+                    DateTimeFormat.LocalTime time = new DateTimeFormat.LocalTime();
+                    time.hour = (byte)cal.get(Calendar.HOUR_OF_DAY);
+                    time.minute = (byte)cal.get(Calendar.MINUTE);
+                    time.second = (byte)cal.get(Calendar.SECOND);
+                    return time;
+                }
+            });
+    }
+
+    private static void churn (Interval ival, int count) {
+        for (int ii = 0; ii < count; ii++) {
+            ival.schedule(60000);
+            ival.cancel();
+        }
+    }
+
+    private static long allocatedBytes () {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(sun.isThreadAllocatedMemorySupported());
+        return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** An executor that holds what it is given until told to run it, or rejects it. */
+    private static class QueueExecutor implements Executor {
+        public final List<Runnable> queue = Lists.newArrayList();
+        public int executes;
+        public boolean reject;
+
+        @Override public void execute (Runnable runnable) {
+            if (reject) {
+                throw new RejectedExecutionException();
+            }
+            executes++;
+            queue.add(runnable);
+        }
+
+        public void runAll () {
+            while (!queue.isEmpty()) {
+                queue.remove(0).run();
+            }
+        }
+    }
+
+    private final IntervalScheduler _original = Interval.scheduler();
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+}
@@ -0,0 +1,151 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import playn.core.Json;
+import playn.core.Storage;
+import playn.core.json.JsonImpl;
+
+public class TestNotificationRegistry
+{
+    @Test
+    public void testWriteBehind () {
+        _items.put(KEY, "{\"ids\":[3,-1]}");
+        NotificationRegistry registry = create();
+        Assert.assertTrue(registry.contains(-1));
+        Assert.assertEquals(ImmutableSet.of(3, -1), registry.ids());
+
+        // many changes, one write
+        for (int ii = 0; ii < 200; ii++) {
+            registry.add(ii + 100);
+        }
+        Assert.assertFalse(registry.add(3));
+        Assert.assertTrue(registry.remove(-1));
+        Assert.assertEquals(1, _writes.size());
+        Assert.assertEquals(0, _sets);
+        _writes.remove(0).run();
+        Assert.assertEquals(1, _sets);
+        Assert.assertEquals(201, create().size());
+
+        // flushing ahead of the queued write leaves it nothing to do
+        registry.clear();
+        registry.flush();
+        _writes.remove(0).run();
+        Assert.assertEquals(2, _sets);
+        Assert.assertEquals(0, create().size());
+    }
+
+    @Test
+    public void testBatchFlush () {
+        // as a platform's batch schedule does: allocate or add an id for each notification, then
+        // save the lot with one flush before handing any of them to the system
+        NotificationRegistry registry = create();
+        List<Integer> ids = Lists.newArrayList();
+        for (int ii = 0; ii < 50; ii++) {
+            ids.add((ii % 2 == 0) ? registry.allocate() : ii);
+        }
+        registry.addAll(ids);
+        registry.flush();
+        Assert.assertEquals(1, _sets);
+        Assert.assertEquals(50, create().size());
+
+        // and the write queued behind it has nothing left to do
+        Assert.assertEquals(1, _writes.size());
+        _writes.remove(0).run();
+        Assert.assertEquals(1, _sets);
+    }
+
+    @Test
+    public void testAllocate () {
+        // saved before the high-water mark
+        _items.put(KEY, "{\"ids\":[-1,-2,5]}");
+        NotificationRegistry registry = create();
+        Assert.assertEquals(-3, registry.allocate());
+        Assert.assertEquals(-4, registry.allocate());
+
+        // removed ids come back before new ones
+        Assert.assertTrue(registry.remove(-2));
+        Assert.assertEquals(-2, registry.allocate());
+        Assert.assertEquals(-5, registry.allocate());
+
+        // an application id in the way is skipped
+        registry.add(-6);
+        Assert.assertEquals(-7, registry.allocate());
+        Assert.assertEquals(ImmutableSet.of(-1, -2, -3, -4, -5, -6, -7, 5), registry.ids());
+
+        // the mark and the holes below it survive a restart
+        registry.remove(-3);
+        registry.flush();
+        registry = create();
+        Assert.assertEquals(-3, registry.allocate());
+        Assert.assertEquals(-8, registry.allocate());
+
+        registry.clear();
+        Assert.assertEquals(-1, registry.allocate());
+    }
+
+    @Test
+    public void testCorrupt () {
+        _items.put(KEY, "{ids:");
+        Assert.assertEquals(0, create().size());
+        Assert.assertFalse(_items.containsKey(KEY));
+    }
+
+    private NotificationRegistry create () {
+        return new NotificationRegistry(KEY, _writer) {
+            @Override protected Storage storage () {
+                return _storage;
+            }
+            @Override protected Json json () {
+                return _json;
+            }
+        };
+    }
+
+    private int _sets;
+    private final Map<String, String> _items = Maps.newHashMap();
+    private final List<Runnable> _writes = Lists.newArrayList();
+    private final Json _json = new JsonImpl();
+    private final Executor _writer = new Executor() {
+        public void execute (Runnable command) {
+            _writes.add(command);
+        }
+    };
+    private final Storage _storage = new Storage() {
+        public void setItem (String key, String data) {
+            _sets++;
+            _items.put(key, data);
+        }
+        public void removeItem (String key) {
+            _items.remove(key);
+        }
+        public String getItem (String key) {
+            return _items.get(key);
+        }
+        public Batch startBatch () {
+            throw new UnsupportedOperationException();
+        }
+        public Iterable<String> keys () {
+            return _items.keySet();
+        }
+        public boolean isPersisted () {
+            return false;
+        }
+    };
+
+    private static final String KEY = "samson.TestNotifications";
+}
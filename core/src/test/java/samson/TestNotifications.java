@@ -0,0 +1,108 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestNotifications
+{
+    @After
+    public void restoreScheduler () {
+        Interval.setScheduler(_original);
+    }
+
+    @Test
+    public void testReplaceById () {
+        _notifier.setReplaceById(true);
+        Notifications.Handle first = _notifier.builder().id("a").message("1").schedule(100);
+        _notifier.builder().id("b").schedule(100);
+        Notifications.Handle second = _notifier.builder().id("a").message("2").schedule(200);
+        Assert.assertEquals(3, _notifier.scheduled.size());
+        Assert.assertEquals(1, _notifier.cancelled);
+
+        // the replaced handle no longer does anything
+        first.cancel();
+        Assert.assertEquals(1, _notifier.cancelled);
+        second.cancel();
+        Assert.assertEquals(2, _notifier.cancelled);
+
+        // duplicates within a batch never reach the platform
+        List<Notifications.Builder> batch = Lists.newArrayList();
+        batch.add(_notifier.builder().id("c").message("1"));
+        batch.add(_notifier.builder().id("c").message("2"));
+        List<Notifications.Handle> handles = _notifier.scheduleAll(batch);
+        Assert.assertEquals(2, handles.size());
+        Assert.assertEquals(4, _notifier.scheduled.size());
+        Assert.assertEquals("2", _notifier.scheduled.get(3)._message);
+    }
+
+    @Test
+    public void testGroupWindow () {
+        VirtualScheduler clock = new VirtualScheduler(0);
+        Interval.setScheduler(clock);
+        _notifier.setGroupWindow(1000, Interval.RUN_DIRECT);
+
+        Notifications.Handle handle = _notifier.builder().group("g").message("1").schedule(500);
+        Notifications.Builder last = _notifier.builder().group("g").message("2");
+        last.schedule(300);
+        _notifier.builder().group("h").schedule(700);
+        _notifier.builder().message("ungrouped").schedule(900);
+        Assert.assertEquals(1, _notifier.scheduled.size());
+
+        // one notification per group at the end of the window, with the last content
+        clock.advanceTo(1000);
+        Assert.assertEquals(3, _notifier.scheduled.size());
+        Notifications.Builder grouped = _notifier.scheduled.get(1);
+        Assert.assertEquals("2", grouped._message);
+        Assert.assertEquals(300, grouped._time);
+        Assert.assertEquals("2", grouped._data.get(Notifications.COUNT));
+        Assert.assertNull(_notifier.scheduled.get(2)._data.get(Notifications.COUNT));
+
+        // the caller's builder is left as it was
+        Assert.assertNotSame(last, grouped);
+        Assert.assertNull(last._data.get(Notifications.COUNT));
+        Assert.assertEquals(300, last._time);
+
+        handle.cancel();
+        Assert.assertEquals(1, _notifier.cancelled);
+
+        // cancelled before the window closes
+        _notifier.builder().group("g").schedule(500).cancel();
+        _notifier.builder().group("h").schedule(500);
+        _notifier.cancelAll();
+        _notifier.flush();
+        clock.advanceTo(3000);
+        Assert.assertEquals(3, _notifier.scheduled.size());
+    }
+
+    protected static class Recorder extends Notifications
+    {
+        public final List<Builder> scheduled = Lists.newArrayList();
+        public int cancelled;
+
+        @Override public void cancelAll () {
+            clearCoalesced();
+        }
+
+        @Override protected Handle schedule (long when, Builder builder) {
+            scheduled.add(builder);
+            return new Handle() {
+                public void cancel () {
+                    cancelled++;
+                }
+            };
+        }
+    }
+
+    private final Recorder _notifier = new Recorder();
+    private final IntervalScheduler _original = Interval.scheduler();
+}
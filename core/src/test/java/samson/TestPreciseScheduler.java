@@ -0,0 +1,117 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPreciseScheduler
+{
+    @Before
+    public void installScheduler () {
+        Interval.setScheduler(_scheduler);
+    }
+
+    @After
+    public void restoreScheduler () {
+        Interval.setScheduler(_original);
+        _scheduler.shutdown();
+    }
+
+    @Test
+    public void testFires () throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        long start = System.nanoTime();
+        record(latch, threads).scheduleNanos(500000L);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= 500000L);
+        Assert.assertEquals(1, threads.size());
+        Assert.assertEquals("samson Interval Precise", threads.get(0).getName());
+    }
+
+    @Test
+    public void testRepeats () throws Exception {
+        // at a fixed rate no expiration comes early, and a loaded machine gets plenty of slack
+        final int count = 200;
+        final long period = 500000L;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long[] fired = new long[count];
+        Interval ival = new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                if (_count < count) {
+                    fired[_count] = System.nanoTime();
+                    if (++_count == count) {
+                        latch.countDown();
+                    }
+                }
+            }
+            protected int _count;
+        };
+        long start = System.nanoTime();
+        ival.scheduleNanos(period, period, true);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        ival.cancel();
+
+        for (int ii = 0; ii < count; ii++) {
+            Assert.assertTrue("early " + ii, fired[ii] - start >= (ii + 1) * period);
+        }
+        Assert.assertTrue(fired[count - 1] - start < count * period + TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(0, _scheduler._queue.size());
+    }
+
+    @Test
+    public void testCancelAndReschedule () throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        Interval ival = record(latch, threads);
+        ival.scheduleNanos(20000000L);
+        ival.cancel();
+        Thread.sleep(50);
+        Assert.assertEquals(0, threads.size());
+
+        // the task keeps its entry across schedules
+        Object entry = ival._task._handle;
+        ival.scheduleNanos(5000000L);
+        ival.scheduleNanos(1000000L);
+        Assert.assertSame(entry, ival._task._handle);
+        Assert.assertEquals(1, _scheduler._queue.size());
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        Assert.assertEquals(1, threads.size());
+    }
+
+    @Test
+    public void testShutdown () throws Exception {
+        List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        record(new CountDownLatch(1), threads).scheduleNanos(20000000L);
+        Thread thread = _scheduler._thread;
+        _scheduler.shutdown();
+        thread.join(5000);
+        Assert.assertFalse(thread.isAlive());
+        Thread.sleep(50);
+        Assert.assertEquals(0, threads.size());
+    }
+
+    private static Interval record (final CountDownLatch latch, final List<Thread> threads) {
+        return new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                threads.add(Thread.currentThread());
+                latch.countDown();
+            }
+        };
+    }
+
+    private final PreciseScheduler _scheduler = new PreciseScheduler(50000L);
+    private final IntervalScheduler _original = Interval.scheduler();
+}
@@ -0,0 +1,154 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import playn.core.PlayN;
+import playn.core.util.Callback;
+
+public class TestSamson
+{
+    @Before
+    public void installPlatforms () {
+        _samson = Samson.platform();
+        Samson.register(proxy(Samson.Platform.class, new InvocationHandler() {
+            public Object invoke (Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("backgroundExecutor")) {
+                    return Samson.sharedBackgroundExecutor();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+        PlayN.setPlatform(proxy(playn.core.Platform.class, new InvocationHandler() {
+            public Object invoke (Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("invokeLater")) {
+                    _playnQueue.add((Runnable)args[0]);
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }));
+    }
+
+    @After
+    public void restorePlatforms () {
+        Samson.register(_samson);
+        PlayN.setPlatform(null);
+    }
+
+    @Test
+    public void testInvokeInBackground () {
+        final Thread playn = Thread.currentThread();
+        final List<String> results = Lists.newArrayList();
+        Callback<String> callback = new Callback<String>() {
+            public void onSuccess (String result) {
+                Assert.assertSame(playn, Thread.currentThread());
+                results.add(result);
+            }
+            public void onFailure (Throwable cause) {
+                Assert.assertSame(playn, Thread.currentThread());
+                results.add("failed " + cause.getMessage());
+            }
+        };
+
+        Samson.invokeInBackground(new Callable<String>() {
+            public String call () {
+                return Thread.currentThread().getName();
+            }
+        }, callback);
+        Samson.invokeInBackground(new Callable<String>() {
+            public String call () throws Exception {
+                throw new Exception("oops");
+            }
+        }, callback);
+
+        // nothing is delivered until the PlayN thread gets to it
+        Assert.assertEquals(0, results.size());
+        runPlayN(2);
+        Assert.assertEquals(2, results.size());
+        Assert.assertTrue(results.contains("failed oops"));
+        results.remove("failed oops");
+        Assert.assertTrue(results.get(0), results.get(0).startsWith("samson Background "));
+    }
+
+    @Test
+    public void testOnPlayN () throws InterruptedException {
+        final Thread playn = Thread.currentThread();
+        final List<Object> results = Lists.newArrayList();
+        final Callback<Integer> callback = Samson.onPlayN(new Callback<Integer>() {
+            public void onSuccess (Integer result) {
+                Assert.assertSame(playn, Thread.currentThread());
+                results.add(result);
+            }
+            public void onFailure (Throwable cause) {
+                Assert.assertSame(playn, Thread.currentThread());
+                results.add(cause);
+            }
+        });
+
+        final IllegalStateException failure = new IllegalStateException();
+        Thread other = new Thread() {
+            @Override public void run () {
+                callback.onSuccess(42);
+                callback.onFailure(failure);
+            }
+        };
+        other.start();
+        other.join();
+        Assert.assertEquals(0, results.size());
+        runPlayN(2);
+        Assert.assertEquals(Lists.<Object>newArrayList(42, failure), results);
+    }
+
+    @Test
+    public void testSharedBackgroundExecutor () throws Exception {
+        ExecutorService pool = Samson.sharedBackgroundExecutor();
+        Assert.assertSame(pool, Samson.sharedBackgroundExecutor());
+        Assert.assertTrue(pool.submit(new Callable<Boolean>() {
+            public Boolean call () {
+                return Thread.currentThread().isDaemon();
+            }
+        }).get(5, TimeUnit.SECONDS));
+    }
+
+    /** Runs the given number of runnables posted to the PlayN thread, waiting for each. */
+    private void runPlayN (int count) {
+        for (int ii = 0; ii < count; ii++) {
+            Runnable runnable;
+            try {
+                runnable = _playnQueue.poll(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+            Assert.assertNotNull(runnable);
+            runnable.run();
+        }
+    }
+
+    private static <T> T proxy (Class<T> iface, InvocationHandler handler) {
+        return iface.cast(Proxy.newProxyInstance(
+            TestSamson.class.getClassLoader(), new Class<?>[] { iface }, handler));
+    }
+
+    private Samson.Platform _samson;
+    private final BlockingQueue<Runnable> _playnQueue = new LinkedBlockingQueue<Runnable>();
+}
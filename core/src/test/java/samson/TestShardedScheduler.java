@@ -0,0 +1,127 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestShardedScheduler
+{
+    @After
+    public void restoreScheduler () {
+        Interval.setScheduler(_original);
+    }
+
+    @Test
+    public void testScheduleAll () {
+        BatchRecorder[] shards = { new BatchRecorder(), new BatchRecorder(), new BatchRecorder() };
+        ShardedScheduler sharded = new ShardedScheduler(ShardedScheduler.ShardBy.INTERVAL, shards);
+        Interval.setScheduler(sharded);
+
+        List<String> fired = Lists.newArrayList();
+        IntervalGroup group = new IntervalGroup();
+        List<Interval> members = Lists.newArrayList();
+        for (int ii = 0; ii < 30; ii++) {
+            Interval ival = record(fired, "i" + ii, Interval.RUN_DIRECT);
+            group.add(ival);
+            members.add(ival);
+        }
+        group.schedule(100);
+
+        // each shard gets its own members in one batch, in group order
+        int total = 0;
+        for (BatchRecorder shard : shards) {
+            List<Interval.IntervalTask> expected = Lists.newArrayList();
+            for (Interval ival : members) {
+                if (sharded.shard(ival._task) == shard) {
+                    expected.add(ival._task);
+                }
+            }
+            Assert.assertEquals(expected.isEmpty() ? 0 : 1, shard.batches.size());
+            if (!expected.isEmpty()) {
+                Assert.assertEquals(expected, shard.batches.get(0));
+            }
+            Assert.assertEquals(expected.size(), shard.size());
+            total += shard.size();
+        }
+        Assert.assertEquals(30, total);
+
+        for (BatchRecorder shard : shards) {
+            shard.advance(100);
+        }
+        Assert.assertEquals(30, fired.size());
+    }
+
+    @Test
+    public void testExecutorOrder () {
+        BatchRecorder[] shards = { new BatchRecorder(), new BatchRecorder(), new BatchRecorder() };
+        ShardedScheduler sharded = new ShardedScheduler(ShardedScheduler.ShardBy.EXECUTOR, shards);
+        Interval.setScheduler(sharded);
+
+        Executor other = new Executor() {
+            public void execute (Runnable runnable) {
+                runnable.run();
+            }
+        };
+        List<String> fired = Lists.newArrayList();
+        Interval a = record(fired, "a", Interval.RUN_DIRECT);
+        Interval b = record(fired, "b", Interval.RUN_DIRECT);
+        Interval c = record(fired, "c", Interval.RUN_DIRECT);
+        Interval d = record(fired, "d", Interval.RUN_DIRECT);
+        Interval x = record(fired, "x", other);
+        IntervalGroup group = new IntervalGroup();
+        group.add(c);
+        group.add(x);
+        group.add(d);
+
+        a.schedule(300);
+        b.schedule(100);
+        group.schedule(200);
+
+        // all of the intervals on one executor share a shard, so fire in deadline order, and in
+        // schedule order for equal deadlines
+        BatchRecorder shard = (BatchRecorder)sharded.shard(a._task);
+        for (Interval ival : Lists.newArrayList(b, c, d)) {
+            Assert.assertSame(shard, sharded.shard(ival._task));
+        }
+        shard.advance(1000);
+        fired.remove("x"); // on another executor, so maybe on this shard and maybe not
+        Assert.assertEquals(Lists.newArrayList("b", "c", "d", "a"), fired);
+    }
+
+    /**
+     * A virtual scheduler that notes the tasks of each batch it is given.
+     */
+    private static class BatchRecorder extends VirtualScheduler {
+        public final List<List<Interval.IntervalTask>> batches = Lists.newArrayList();
+
+        @Override protected void scheduleAll (Interval.IntervalTask[] tasks, int[] generations,
+                long[] initialDelays, int count, long repeatDelay, boolean fixedRate) {
+            List<Interval.IntervalTask> batch = Lists.newArrayList();
+            for (int ii = 0; ii < count; ii++) {
+                batch.add(tasks[ii]);
+            }
+            batches.add(batch);
+            super.scheduleAll(tasks, generations, initialDelays, count, repeatDelay, fixedRate);
+        }
+    }
+
+    private static Interval record (final List<String> fired, final String name, Executor exec) {
+        return new Interval(exec) {
+            @Override public void expired () {
+                fired.add(name);
+            }
+        };
+    }
+
+    private final IntervalScheduler _original = Interval.scheduler();
+}
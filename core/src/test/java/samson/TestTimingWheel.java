@@ -0,0 +1,173 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTimingWheel
+{
+    @Before
+    public void installWheel () {
+        Interval.setScheduler(_wheel);
+    }
+
+    @After
+    public void restoreScheduler () {
+        Interval.setScheduler(_original);
+    }
+
+    @Test
+    public void testLevels () {
+        // one delay on each side of every level boundary the test can reach in reasonable time
+        long[] delays = { 1, 2, 63, 64, 65, 127, 4095, 4096, 4097, 8191, 262143, 262144, 262145 };
+        Map<Long, List<Long>> fired = Maps.newHashMap();
+        for (long delay : delays) {
+            record(fired, delay).schedule(delay);
+        }
+        Assert.assertEquals(delays.length, _wheel.size());
+
+        _wheel.step(262145 + 100);
+        for (long delay : delays) {
+            Assert.assertEquals("delay " + delay, Lists.newArrayList(delay), fired.get(delay));
+        }
+        Assert.assertEquals(0, _wheel.size());
+    }
+
+    @Test
+    public void testNoDoubleFiring () {
+        Random random = new Random(1234);
+        Map<Long, List<Long>> fired = Maps.newHashMap();
+        List<Long> delays = Lists.newArrayList();
+        for (int ii = 0; ii < 2000; ii++) {
+            long delay = 1 + random.nextInt(20000);
+            if (!delays.contains(delay)) {
+                delays.add(delay);
+                record(fired, delay).schedule(delay);
+            }
+        }
+
+        _wheel.step(20100);
+        for (long delay : delays) {
+            Assert.assertEquals("delay " + delay, Lists.newArrayList(delay), fired.get(delay));
+        }
+        Assert.assertEquals(0, _wheel.size());
+    }
+
+    @Test
+    public void testRepeats () {
+        Map<Long, List<Long>> fired = Maps.newHashMap();
+        Interval rate = record(fired, 1L);
+        Interval delay = record(fired, 2L);
+        rate.schedule(10, 10, true);
+        delay.schedule(10, 10, false);
+
+        _wheel.step(10);
+        // stall: the wheel wakes up at 25 and catches up through the tick due at 20
+        _wheel.jumpTo(25);
+        _wheel.step(40 - 25);
+        rate.cancel();
+        delay.cancel();
+
+        // fixed rate stays on its original beat, fixed delay counts from the late firing
+        Assert.assertEquals(Lists.newArrayList(10L, 25L, 30L, 40L), fired.get(1L));
+        Assert.assertEquals(Lists.newArrayList(10L, 25L, 35L), fired.get(2L));
+        Assert.assertEquals(0, _wheel.size());
+    }
+
+    @Test
+    public void testCancelAndReschedule () {
+        Map<Long, List<Long>> fired = Maps.newHashMap();
+        Interval cancelled = record(fired, 1L);
+        Interval later = record(fired, 2L);
+        Interval earlier = record(fired, 3L);
+        Interval cascaded = record(fired, 4L);
+        cancelled.schedule(100);
+        later.schedule(100);
+        earlier.schedule(5000);
+        cascaded.schedule(5000);
+
+        _wheel.step(50);
+        cancelled.cancel();
+        later.schedule(200);
+        earlier.schedule(10);
+        Assert.assertEquals(3, _wheel.size());
+
+        // cancel the last one after the cascade at 4096 has moved it to an inner wheel
+        _wheel.step(4500 - 50);
+        cascaded.cancel();
+        Assert.assertEquals(0, _wheel.size());
+
+        _wheel.step(1000);
+        Assert.assertNull(fired.get(1L));
+        Assert.assertEquals(Lists.newArrayList(250L), fired.get(2L));
+        Assert.assertEquals(Lists.newArrayList(60L), fired.get(3L));
+        Assert.assertNull(fired.get(4L));
+    }
+
+    /**
+     * A wheel with one millisecond ticks that is stepped by the test on the calling thread, with
+     * a clock that only moves when told to.
+     */
+    private static class SteppedWheel extends TimingWheelScheduler {
+        public SteppedWheel () {
+            super(1);
+            _thread = new Thread(); // never started, so that the wheel does not start its own
+        }
+
+        /** Moves the clock forward one tick at a time, firing as it goes. */
+        public void step (long ticks) {
+            for (long ii = 0; ii < ticks; ii++) {
+                jumpTo(_now + 1);
+            }
+        }
+
+        /** Moves the clock straight to the given tick, as a late wakeup of the wheel would. */
+        public void jumpTo (long now) {
+            synchronized (this) {
+                _now = now;
+                while (_tick < now) {
+                    advance();
+                }
+            }
+            fireExpired();
+        }
+
+        public synchronized long tick () {
+            return _tick;
+        }
+
+        @Override protected long elapsedTicks () {
+            return _now;
+        }
+
+        private long _now;
+    }
+
+    private Interval record (final Map<Long, List<Long>> fired, final long key) {
+        return new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                List<Long> ticks = fired.get(key);
+                if (ticks == null) {
+                    fired.put(key, ticks = Lists.<Long>newArrayList());
+                }
+                ticks.add(_wheel.tick());
+            }
+        };
+    }
+
+    private final SteppedWheel _wheel = new SteppedWheel();
+    private final IntervalScheduler _original = Interval.scheduler();
+}
@@ -46,6 +46,7 @@ public class IOSNotifications extends Notifications
 
     @Override
     public void cancelAll () {
+        clearCoalesced();
         UIApplication.get_SharedApplication().CancelAllLocalNotifications();
     }
 
@@ -7,6 +7,7 @@ package samson;
 
 import java.util.Comparator;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 import playn.ios.IOSPlatform;
 
@@ -120,6 +121,11 @@ public class IOSSamson implements Platform
         _platform.rootViewController().PresentViewController(mail, true, null);
     }
 
+    @Override
+    public Executor backgroundExecutor () {
+        return _background;
+    }
+
     private IOSSamson (IOSPlatform platform) {
         _platform = platform;
     }
@@ -136,4 +142,5 @@ public class IOSSamson implements Platform
     private IOSFormats _formats = new IOSFormats();
     private IOSSecureUtil _secureUtil = new IOSSecureUtil();
     private IOSNotifications _notifier = new IOSNotifications();
+    private Executor _background = Samson.sharedBackgroundExecutor();
 }
@@ -5,8 +5,13 @@
 
 package samson;
 
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.Lists;
 
@@ -14,44 +19,177 @@ import org.lwjgl.opengl.Display;
 
 /**
  * Notifier for debugging notifications. Issues a log message printout via an Interval.
+ *
+ * <p>Pending notifications are kept in a set ordered by deadline, so scheduling and cancelling
+ * are O(log n) and safe from any thread. A single interval is armed for the earliest deadline and
+ * dispatches everything that is due each time it expires.</p>
  */
 public class JavaNotifications extends Notifications
 {
+    /**
+     * Creates notifications that are dispatched on the PlayN thread.
+     */
+    public JavaNotifications () {
+        this(Interval.PLAYN);
+    }
+
+    /**
+     * Creates notifications that are dispatched using the given executor. For example, {@link
+     * Interval#RUN_DIRECT} allows notifications to be dispatched synchronously by a {@link
+     * VirtualScheduler}.
+     */
+    public JavaNotifications (Executor runQueue) {
+        _dispatcher = new Interval(runQueue) {
+            @Override
+            public void expired () {
+                dispatchDue();
+            }
+        };
+    }
+
+    /**
+     * Returns the number of notifications waiting to be dispatched.
+     */
+    public int pending () {
+        return _pending.size();
+    }
+
     @Override
     public void cancelAll () {
-        for (Interval interval : _scheduled) {
-            interval.cancel();
+        clearCoalesced();
+        // under the same lock as schedule, so that a notification added in the meantime is
+        // either cleared with the rest or armed afterwards
+        synchronized (this) {
+            _pending.clear();
+            _armedAt = Long.MAX_VALUE;
+            _dispatcher.cancel();
         }
-        _scheduled.clear();
     }
 
     @Override
-    protected Handle schedule (long when, Builder builder) {
-        final String message = builder._message;
-        final Map<String, String> data = builder._data;
+    protected synchronized Handle schedule (long when, Builder builder) {
+        Handle handle = enqueue(when, builder);
+        arm();
+        return handle;
+    }
 
-        final Interval interval = new Interval() {
-            @Override
-            public void expired () {
-                Log.log.info("Notification!", "data", data, "message", message);
-                dispatch(data, Display.isActive());
-                _scheduled.remove(this);
-            }
-        };
+    @Override
+    protected synchronized List<Handle> schedule (List<Builder> builders) {
+        List<Handle> handles = Lists.newArrayListWithCapacity(builders.size());
+        for (Builder builder : builders) {
+            handles.add(enqueue(builder._time, builder));
+        }
+        // arm once for the lot
+        arm();
+        return handles;
+    }
 
-        Log.log.debug("Scheduling notification", "data", data, "message", message, "when", when);
-        interval.schedule(Math.max(0, when - System.currentTimeMillis()));
-        _scheduled.add(interval);
+    /**
+     * Adds a notification to the pending set, without arming the dispatcher. Called with the
+     * monitor held.
+     */
+    protected Handle enqueue (long when, Builder builder) {
+        final Pending pending = new Pending(when, _seq.getAndIncrement(), builder);
+        Log.log.debug("Scheduling notification", "data", pending.data,
+            "message", pending.message, "when", when);
+        _pending.add(pending);
 
         return new Handle() {
             @Override
             public void cancel() {
-                Log.log.debug("Cancelling notification", "data", data, "message", message);
-                interval.cancel();
-                _scheduled.remove(interval);
+                Log.log.debug("Cancelling notification", "data", pending.data,
+                    "message", pending.message);
+                // the dispatcher may still wake up for it, and will find nothing due
+                _pending.remove(pending);
             }
         };
     }
 
-    protected List<Interval> _scheduled = Lists.newArrayList();
+    /**
+     * Dispatches all notifications that are due and arms the dispatcher for the next one.
+     */
+    protected void dispatchDue () {
+        synchronized (this) {
+            _armedAt = Long.MAX_VALUE;
+        }
+        Pending due = new Pending(Interval.currentTimeMillis(), Long.MAX_VALUE, null);
+        for (Iterator<Pending> it = _pending.headSet(due).iterator(); it.hasNext(); ) {
+            Pending pending = it.next();
+            // a concurrent cancel may beat us to it
+            if (_pending.remove(pending)) {
+                Log.log.info("Notification!", "data", pending.data, "message", pending.message);
+                dispatch(pending.data, isAppActive());
+            }
+        }
+        arm();
+    }
+
+    /**
+     * Returns whether the app is in the foreground when a notification is dispatched. By
+     * default, whether the display is active.
+     */
+    protected boolean isAppActive () {
+        return Display.isActive();
+    }
+
+    /**
+     * Schedules the dispatcher for the earliest pending notification, unless it is already
+     * scheduled for that time or earlier.
+     */
+    protected synchronized void arm () {
+        Iterator<Pending> it = _pending.iterator();
+        if (!it.hasNext()) {
+            return;
+        }
+        long when = it.next().when;
+        if (when < _armedAt) {
+            _armedAt = when;
+            _dispatcher.schedule(Math.max(0, when - Interval.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * A notification waiting for its time.
+     */
+    protected static class Pending {
+        /** When the notification is due, in epoch milliseconds. */
+        public final long when;
+
+        /** Orders notifications that are due at the same time, in order of scheduling. */
+        public final long seq;
+
+        /** The message and data of the notification. */
+        public final String message;
+        public final Map<String, String> data;
+
+        public Pending (long when, long seq, Builder builder) {
+            this.when = when;
+            this.seq = seq;
+            this.message = (builder == null) ? null : builder._message;
+            this.data = (builder == null) ? null : builder._data;
+        }
+    }
+
+    /** Orders pending notifications by deadline, then by the order in which they were scheduled. */
+    protected static final Comparator<Pending> ORDER = new Comparator<Pending>() {
+        @Override public int compare (Pending p1, Pending p2) {
+            if (p1.when != p2.when) {
+                return p1.when < p2.when ? -1 : 1;
+            }
+            return p1.seq < p2.seq ? -1 : (p1.seq == p2.seq ? 0 : 1);
+        }
+    };
+
+    /** The notifications waiting to be dispatched. */
+    protected final ConcurrentSkipListSet<Pending> _pending =
+        new ConcurrentSkipListSet<Pending>(ORDER);
+
+    /** The source of {@link Pending#seq}. */
+    protected final AtomicLong _seq = new AtomicLong();
+
+    /** Dispatches the notifications that are due. */
+    protected final Interval _dispatcher;
+
+    /** The deadline the dispatcher is scheduled for, or Long.MAX_VALUE. Guarded by this. */
+    protected long _armedAt = Long.MAX_VALUE;
 }
@@ -0,0 +1,138 @@
+//
+// SamsoN - utilities for playn clients and servers
+// Copyright (c) 2014, Cupric - All rights reserved.
+// http://github.com/cupric/samson/blob/master/LICENSE
+
+package samson;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestJavaNotifications
+{
+    @Before
+    public void installScheduler () {
+        Interval.setScheduler(_clock);
+    }
+
+    @After
+    public void restoreScheduler () {
+        Interval.setScheduler(_original);
+    }
+
+    @Test
+    public void testOrdering () {
+        _notifier.builder().data("n", "b").schedule(200);
+        _notifier.builder().data("n", "a").schedule(100);
+        _notifier.builder().data("n", "c").schedule(100);
+        Notifications.Handle cancelled = _notifier.builder().data("n", "d").schedule(150);
+
+        // one dispatcher, armed for the earliest
+        Assert.assertEquals(4, _notifier.pending());
+        Assert.assertEquals(1, _clock.size());
+        Assert.assertEquals(100, _clock.nextDeadline());
+
+        // due at the same time, in the order scheduled
+        _clock.advanceTo(100);
+        Assert.assertEquals(Lists.newArrayList("a", "c"), arrived());
+        Assert.assertEquals(150, _clock.nextDeadline());
+
+        // the dispatcher wakes up for the cancelled one, finds nothing due and arms for the next
+        cancelled.cancel();
+        _clock.advanceTo(150);
+        Assert.assertEquals(2, arrived().size());
+        Assert.assertEquals(200, _clock.nextDeadline());
+        _clock.advanceTo(300);
+        Assert.assertEquals(Lists.newArrayList("a", "c", "b"), arrived());
+        Assert.assertEquals(0, _clock.size());
+        Assert.assertFalse(_notifier.arrived().get(0).wasActive);
+    }
+
+    @Test
+    public void testCancelAll () {
+        _notifier.builder().data("n", "a").schedule(100);
+        _notifier.builder().data("n", "b").schedule(200);
+        _notifier.cancelAll();
+        Assert.assertEquals(0, _notifier.pending());
+        Assert.assertEquals(0, _clock.size());
+        _clock.advanceTo(300);
+        Assert.assertEquals(0, _notifier.arrived().size());
+
+        // the dispatcher is armed again by the next schedule, even for a later deadline
+        _notifier.builder().data("n", "c").schedule(400);
+        Assert.assertEquals(1, _clock.size());
+        _clock.advanceTo(400);
+        Assert.assertEquals(Lists.newArrayList("c"), arrived());
+    }
+
+    @Test
+    public void testScheduleAll () {
+        List<Notifications.Builder> builders = Lists.newArrayList();
+        for (int ii = 0; ii < 50; ii++) {
+            builders.add(_notifier.builder().data("n", "" + ii).at(1000 - ii * 10));
+        }
+        List<Notifications.Handle> handles = _notifier.scheduleAll(builders);
+        Assert.assertEquals(50, handles.size());
+        Assert.assertEquals(50, _notifier.pending());
+
+        // the batch arms the dispatcher once, for the earliest
+        Assert.assertEquals(1, _notifier.arms);
+        Assert.assertEquals(1, _clock.schedules);
+        Assert.assertEquals(510, _clock.nextDeadline());
+
+        _clock.advanceTo(1000);
+        Assert.assertEquals(50, arrived().size());
+        Assert.assertEquals("49", arrived().get(0));
+    }
+
+    private List<String> arrived () {
+        List<String> names = Lists.newArrayList();
+        for (Notifications.Incoming incoming : _notifier.arrived()) {
+            names.add(incoming.data.get("n"));
+        }
+        return names;
+    }
+
+    private static class CountingScheduler extends VirtualScheduler
+    {
+        public int schedules;
+
+        public CountingScheduler () {
+            super(0);
+        }
+
+        @Override protected void schedule (Interval.IntervalTask task, long initialDelay,
+                long repeatDelay, boolean fixedRate) {
+            schedules++;
+            super.schedule(task, initialDelay, repeatDelay, fixedRate);
+        }
+    }
+
+    private static class Recorder extends JavaNotifications
+    {
+        public int arms;
+
+        public Recorder () {
+            super(Interval.RUN_DIRECT);
+        }
+
+        @Override protected boolean isAppActive () {
+            return false;
+        }
+
+        @Override protected synchronized void arm () {
+            arms++;
+            super.arm();
+        }
+    }
+
+    private final IntervalScheduler _original = Interval.scheduler();
+    private final CountingScheduler _clock = new CountingScheduler();
+    private final Recorder _notifier = new Recorder();
+}
@@ -7,6 +7,7 @@ package samson;
 
 import java.util.Comparator;
 import java.util.Locale;
+import java.util.concurrent.Executor;
 
 import samson.text.DateTimeFormat;
 import samson.text.NumberFormat;
@@ -49,6 +50,11 @@ public abstract class JvmSamson implements Samson.Platform
         return getFormats();
     }
 
+    @Override
+    public Executor backgroundExecutor () {
+        return _background;
+    }
+
     private JvmFormats getFormats () {
         if (_locale == null) {
             setFormattingLocale(getDeviceLocale());
@@ -58,4 +64,5 @@ public abstract class JvmSamson implements Samson.Platform
 
     private Locale _locale;
     private JvmFormats _formats = new JvmFormats();
+    private Executor _background = Samson.sharedBackgroundExecutor();
 }